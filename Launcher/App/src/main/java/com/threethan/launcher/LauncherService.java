@@ -13,6 +13,7 @@ import androidx.annotation.Nullable;
 import androidx.core.util.Consumer;
 
 import com.threethan.launcher.activity.LauncherActivity;
+import com.threethan.launchercore.metadata.IconLoader;
 
 import java.util.Collections;
 import java.util.HashMap;
@@ -134,6 +135,15 @@ public class LauncherService extends Service {
         activityByIndex.remove(activity);
     }
 
+    /**
+     * Trims in-memory caches, since this service keeps the process alive indefinitely
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        IconLoader.cachedIcons.onTrimMemory(level);
+    }
+
     /**
      * Calls the consumer for each non-null launcher activity
      */
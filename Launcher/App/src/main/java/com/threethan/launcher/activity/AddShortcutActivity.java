@@ -80,29 +80,47 @@ public class AddShortcutActivity extends Activity {
 
         LauncherApps launcherApps = (LauncherApps) activity.getSystemService(Context.LAUNCHER_APPS_SERVICE);
         Log.v("JSON", json);
-        ShortcutInfo shortcutInfo = getFixedGsonReader().fromJson(json, ShortcutInfo.class);
+        ShortcutInfo shortcutInfo;
+        try {
+            shortcutInfo = Reader.SHORTCUT_ADAPTER.fromJson(json);
+        } catch (IOException e) {
+            Log.e("AddShortcutActivity", "Failed to read shortcut", e);
+            return;
+        }
         launcherApps.startShortcut(shortcutInfo, null, null);
     }
     /** Gets a Gson writer that works around duplicate field errors */
     protected static Gson getFixedGsonWriter() {
-        return new GsonBuilder()
-                .setExclusionStrategies(getExclusionStrategy()).create();
+        return Writer.GSON;
     }
     /** Gets a Gson reader that works around duplicate field & unwritable value errors */
     protected static Gson getFixedGsonReader() {
-        return new GsonBuilder()
+        return Reader.GSON;
+    }
+    // Gson instances and their adapters are thread-safe, and binding ShortcutInfo's fields
+    // through reflection is slow, so each is built once, the first time it's used
+    private static abstract class Writer {
+        private static final Gson GSON = new GsonBuilder()
+                .setExclusionStrategies(getExclusionStrategy()).create();
+    }
+    private static abstract class Reader {
+        private static final TypeAdapter<CharSequence> CHAR_SEQUENCE_ADAPTER
+                = new TypeAdapter<>() {
+            @Override
+            public void write(JsonWriter out, CharSequence value) throws IOException {
+                out.value(value.toString());
+            }
+
+            @Override
+            public CharSequence read(JsonReader in) throws IOException {
+                return in.nextString();
+            }
+        };
+        private static final Gson GSON = new GsonBuilder()
                 .setExclusionStrategies(getExclusionStrategy())
-                .registerTypeAdapter(CharSequence.class, new TypeAdapter<CharSequence>() {
-                    @Override
-                    public void write(JsonWriter out, CharSequence value) throws IOException {
-                        out.value(value.toString());
-                    }
-
-                    @Override
-                    public CharSequence read(JsonReader in) throws IOException {
-                        return in.nextString();
-                    }
-                }).create();
+                .registerTypeAdapter(CharSequence.class, CHAR_SEQUENCE_ADAPTER).create();
+        private static final TypeAdapter<ShortcutInfo> SHORTCUT_ADAPTER
+                = GSON.getAdapter(ShortcutInfo.class);
     }
     /** Gets the exclusion strategy for working Gson reader/writer */
     protected static ExclusionStrategy getExclusionStrategy() {
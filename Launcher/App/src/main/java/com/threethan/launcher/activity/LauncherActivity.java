@@ -37,11 +37,14 @@ import com.threethan.launcher.LauncherService;
 import com.threethan.launcher.R;
 import com.threethan.launcher.activity.adapter.CustomItemAnimator;
 import com.threethan.launcher.activity.adapter.GroupsAdapter;
+import com.threethan.launcher.activity.adapter.IconPrefetcher;
 import com.threethan.launcher.activity.adapter.LauncherAppsAdapter;
 import com.threethan.launcher.activity.dialog.AppDetailsDialog;
 import com.threethan.launcher.activity.dialog.SettingsDialog;
 import com.threethan.launcher.activity.executor.WallpaperExecutor;
 import com.threethan.launcher.activity.support.DataStoreEditor;
+import com.threethan.launcher.activity.support.LabelIndex;
+import com.threethan.launcher.activity.support.LabelResolver;
 import com.threethan.launcher.activity.support.SettingsManager;
 import com.threethan.launcher.activity.view.MarginDecoration;
 import com.threethan.launcher.data.Settings;
@@ -52,6 +55,7 @@ import com.threethan.launcher.updater.FileManagerUpdater;
 import com.threethan.launcher.updater.LauncherUpdater;
 import com.threethan.launchercore.Core;
 import com.threethan.launchercore.lib.ImageLib;
+import com.threethan.launchercore.metadata.IconLoader;
 import com.threethan.launchercore.util.CustomDialog;
 import com.threethan.launchercore.util.Keyboard;
 import com.threethan.launchercore.util.Launch;
@@ -377,6 +381,18 @@ public class LauncherActivity extends Launch.LaunchingActivity {
                 packageManager.getInstalledApplications(PackageManager.GET_META_DATA)));
     }
     private void refreshPackagesInternal(List<ApplicationInfo> newApps) {
+        if (PlatformExt.installedApps != null) {
+            // Labels of installed or removed packages are looked up and resolved again
+            final Set<String> changed = new HashSet<>();
+            PlatformExt.installedApps.forEach(app -> changed.add(app.packageName));
+            newApps.forEach(app -> {
+                if (!changed.remove(app.packageName)) changed.add(app.packageName);
+            });
+            for (String packageName : changed) {
+                LabelIndex.remove(packageName);
+                LabelResolver.forget(packageName);
+            }
+        }
         PlatformExt.installedApps = newApps;
 
         Log.v(TAG, "Package Reload - Found "+ PlatformExt.installedApps.size() +" packages");
@@ -479,6 +495,7 @@ public class LauncherActivity extends Launch.LaunchingActivity {
             appsView.setAdapter(
                     new LauncherAppsAdapter(this));
             appsView.setItemAnimator(new CustomItemAnimator());
+            appsView.addOnScrollListener(new IconPrefetcher());
         } else {
             getAppAdapter().setAppList(this);
         }
@@ -555,6 +572,9 @@ public class LauncherActivity extends Launch.LaunchingActivity {
 
         int targetSize = dp(iconScale);
         int margin = getMargin(targetSize);
+        // Banners are the tallest tiles, and tiles scale up when hovered or opened
+        IconLoader.setTargetHeight((int) (targetSize * LauncherAppsAdapter.BANNER_ASPECT
+                * LauncherAppsAdapter.getMaxTileScale()));
 
         final boolean groupsVisible = getGroupAdapter() != null && groupsEnabled && !getSearching();
         final int topAdd = groupsVisible ? dp(32) + groupHeight : dp(23);
@@ -11,16 +11,22 @@ import android.view.MotionEvent;
 import android.view.View;
 import android.widget.ImageView;
 
+import androidx.annotation.Nullable;
+
 import com.threethan.launcher.R;
+import com.threethan.launcher.activity.adapter.LauncherAppsAdapter;
 import com.threethan.launcher.activity.view.EditTextWatched;
 import com.threethan.launcher.helper.LaunchExt;
 import com.threethan.launchercore.Core;
+import com.threethan.launchercore.adapter.ArrayListAdapter;
 import com.threethan.launchercore.metadata.IconLoader;
 import com.threethan.launchercore.util.Keyboard;
 
 import java.util.Objects;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 
 import eightbitlab.com.blurview.BlurView;
 
@@ -42,28 +48,54 @@ public class LauncherActivitySearchable extends LauncherActivityEditable {
     private boolean searching = false;
     private boolean beenNonEmpty = false;
 
-    protected void searchFor(String text) {
+    // Searches run after typing pauses for this long
+    private static final long SEARCH_DELAY_MS = 50;
+    private static final long SEARCH_KEEP_ALIVE_SECONDS = 30;
+    private static final ScheduledThreadPoolExecutor searchExecutor
+            = new ScheduledThreadPoolExecutor(1, runnable -> new Thread(runnable, "Search"));
+    static {
+        searchExecutor.setKeepAliveTime(SEARCH_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        searchExecutor.allowCoreThreadTimeOut(true);
+    }
+    // Incremented for every query, so work for older queries can be abandoned
+    private final AtomicInteger searchGeneration = new AtomicInteger();
+
+    /**
+     * Searches for the given text in the background, then shows the results.
+     * Any search which is already queued or running is abandoned.
+     * @param text Search query
+     */
+    protected void queueSearch(String text) {
+        final int generation = searchGeneration.incrementAndGet();
+        final LauncherAppsAdapter adapter = getAppAdapter();
+        searchExecutor.schedule(() -> searchFor(text, adapter, generation),
+                SEARCH_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+    private void searchFor(String text, @Nullable LauncherAppsAdapter adapter, int generation) {
+        final BooleanSupplier isStale = () -> generation != searchGeneration.get();
+        if (isStale.getAsBoolean()) return;
         if (text.isEmpty()) {
-            if (beenNonEmpty) hideSearchBar();
-        } else {
-            Objects.requireNonNull(getAppAdapter()).filterBy(text);
+            runOnUiThread(() -> {
+                if (!isStale.getAsBoolean() && beenNonEmpty) hideSearchBar();
+            });
+            return;
+        }
+        if (adapter == null) return;
+        final ArrayListAdapter.ItemsDiff<ApplicationInfo> diff;
+        try {
+            diff = adapter.filterBy(text, isStale);
+        } catch (Exception e) {
+            Log.w(TAG, "Search failed", e);
+            return;
+        }
+        if (diff == null) return;
+        // Only the final changes are made on the UI thread
+        runOnUiThread(() -> {
+            if (isStale.getAsBoolean() || adapter != getAppAdapter()) return;
+            adapter.applyItems(diff);
             updateTopSearchResult();
             beenNonEmpty = true;
-        }
-    }
-    Timer timer = new Timer();
-    protected void queueSearch(String text) {
-
-        timer.cancel();
-        timer = new Timer();
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                try {
-                    runOnUiThread(() -> searchFor(text));
-                } catch (Exception ignored) {}
-            }
-        }, 200);
+        });
     }
     BlurView searchBar;
 
@@ -111,6 +143,8 @@ public class LauncherActivitySearchable extends LauncherActivityEditable {
     }
 
     void hideSearchBar() {
+        // Results of pending searches shouldn't be shown anymore
+        searchGeneration.incrementAndGet();
         try {
             searching = false;
             Keyboard.hide(this, mainView);
@@ -0,0 +1,89 @@
+package com.threethan.launcher.activity.adapter;
+
+import android.content.pm.ApplicationInfo;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.GridLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.threethan.launchercore.metadata.IconLoader;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the icons of apps just outside the visible area of the app grid into memory,
+ * in the direction the grid is being scrolled, so they're ready by the time they're bound.
+ * <p>
+ * Queued prefetches for rows which have since scrolled far away are cancelled.
+ * Should be added to the app grid using {@link RecyclerView#addOnScrollListener}
+ */
+public class IconPrefetcher extends RecyclerView.OnScrollListener {
+    /** Number of rows ahead of the visible area to prefetch */
+    private static final int PREFETCH_ROWS = 3;
+    /** Prefetches further than this many rows from the visible area are cancelled */
+    private static final int CANCEL_ROWS = PREFETCH_ROWS * 2;
+
+    private static final AtomicInteger bindCount = new AtomicInteger();
+    private static final AtomicInteger residentBindCount = new AtomicInteger();
+
+    // Only accessed from the UI thread
+    private final Map<Integer, Future<?>> prefetchByPosition = new HashMap<>();
+
+    @Override
+    public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+        if (dy == 0) return;
+        if (!(recyclerView.getLayoutManager() instanceof GridLayoutManager layoutManager)) return;
+        if (!(recyclerView.getAdapter() instanceof LauncherAppsAdapter adapter)) return;
+
+        final int first = layoutManager.findFirstVisibleItemPosition();
+        final int last = layoutManager.findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION || last == RecyclerView.NO_POSITION) return;
+        // Banners take two spans, so this may overestimate the number of items per row
+        final int perRow = layoutManager.getSpanCount();
+
+        // Drop prefetches which are now far from view
+        for (Iterator<Map.Entry<Integer, Future<?>>> iterator
+             = prefetchByPosition.entrySet().iterator(); iterator.hasNext();) {
+            Map.Entry<Integer, Future<?>> entry = iterator.next();
+            final int position = entry.getKey();
+            if (entry.getValue().isDone()) iterator.remove();
+            else if (position < first - perRow * CANCEL_ROWS
+                    || position > last + perRow * CANCEL_ROWS) {
+                entry.getValue().cancel(false);
+                iterator.remove();
+            }
+        }
+
+        // Queue prefetches ahead of the scroll direction
+        final int start = dy > 0 ? last + 1 : Math.max(0, first - perRow * PREFETCH_ROWS);
+        final int end = dy > 0
+                ? Math.min(adapter.getItemCount(), last + 1 + perRow * PREFETCH_ROWS) : first;
+        for (int position = start; position < end; position++) {
+            if (prefetchByPosition.containsKey(position)) continue;
+            final ApplicationInfo app = adapter.getItem(position);
+            if (IconLoader.isIconResident(app)) continue;
+            prefetchByPosition.put(position, IconLoader.prefetchIcon(app));
+        }
+    }
+
+    /**
+     * Records whether an app's icon was already in memory when its view was bound
+     * @param app App which was bound
+     */
+    public static void countBind(ApplicationInfo app) {
+        bindCount.incrementAndGet();
+        if (IconLoader.isIconResident(app)) residentBindCount.incrementAndGet();
+    }
+    /** @return The total number of app views bound */
+    public static int getBindCount() {
+        return bindCount.get();
+    }
+    /** @return The number of app views bound whose icon was already in memory */
+    public static int getResidentBindCount() {
+        return residentBindCount.get();
+    }
+}
@@ -3,7 +3,6 @@ package com.threethan.launcher.activity.adapter;
 import android.animation.ObjectAnimator;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
-import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
@@ -28,21 +27,28 @@ import androidx.recyclerview.widget.RecyclerView;
 import com.threethan.launcher.R;
 import com.threethan.launcher.activity.LauncherActivity;
 import com.threethan.launcher.activity.dialog.AppDetailsDialog;
+import com.threethan.launcher.activity.support.SearchIndex;
+import com.threethan.launcher.activity.support.SearchProviders;
 import com.threethan.launcher.activity.support.SettingsManager;
 import com.threethan.launcher.data.Settings;
 import com.threethan.launcher.helper.LaunchExt;
 import com.threethan.launcher.helper.PlaytimeHelper;
 import com.threethan.launchercore.adapter.ArrayListAdapter;
-import com.threethan.launchercore.lib.ImageLib;
-import com.threethan.launchercore.lib.StringLib;
+import com.threethan.launchercore.metadata.IconDrawable;
 import com.threethan.launchercore.metadata.IconLoader;
 import com.threethan.launchercore.util.App;
 import com.threethan.launchercore.util.Platform;
 
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
 
 /**
  *     The adapter for the main app grid.
@@ -55,17 +61,53 @@ import java.util.Set;
  *     It also handles displaying/updating the views of an app (hover interactions, background website)
  */
 public class LauncherAppsAdapter extends ArrayListAdapter<ApplicationInfo, LauncherAppsAdapter.AppViewHolder> {
+    /** Height of a banner tile relative to a column's width, since it spans two columns at 16:9 */
+    public static final float BANNER_ASPECT = 2 * 9 / 16f;
+    // Scale of a tile as its app opens, which is larger than any hover scale
+    private static final float OPEN_SCALE = 1.15f;
+    private static final float OPEN_SCALE_TV = 1.40f;
     private LauncherActivity launcherActivity;
-    private Set<ApplicationInfo> fullAppSet;
+    private volatile Set<ApplicationInfo> fullAppSet;
+    @Nullable private volatile SearchIndex searchIndex;
+    // Proxy apps for web searches, which are updated in place as the query changes
+    private Map<SearchProviders.Provider, ApplicationInfo> searchProxies = Collections.emptyMap();
+    private int searchProxiesVersion = -1;
     private boolean getEditMode() {
         return launcherActivity.isEditing();
     }
     public LauncherAppsAdapter(LauncherActivity activity) {
         launcherActivity = activity;
     }
+    /** @return The largest scale at which a tile is shown, as its app opens */
+    public static float getMaxTileScale() {
+        return Platform.isTv() ? OPEN_SCALE_TV : OPEN_SCALE;
+    }
     public void setFullAppSet(Set<ApplicationInfo> myApps) {
         fullAppSet = myApps;
     }
+    /** Gets the search index for the current set of apps, rebuilding it if it's out of date */
+    private SearchIndex getSearchIndex() {
+        final Set<ApplicationInfo> apps = fullAppSet;
+        SearchIndex index = searchIndex;
+        if (index == null || index.isStale(apps)) searchIndex = index = SearchIndex.build(apps);
+        return index;
+    }
+    /**
+     * Gets a proxy app for each registered search provider, in order, rebuilding them if
+     * providers were registered or unregistered. Proxies of remaining providers are kept.
+     */
+    private synchronized Map<SearchProviders.Provider, ApplicationInfo> getSearchProxies() {
+        final int version = SearchProviders.getVersion();
+        if (version == searchProxiesVersion) return searchProxies;
+        final Map<SearchProviders.Provider, ApplicationInfo> proxies = new LinkedHashMap<>();
+        for (SearchProviders.Provider provider : SearchProviders.getAll()) {
+            final ApplicationInfo proxy = searchProxies.get(provider);
+            proxies.put(provider, proxy == null ? new ApplicationInfo() : proxy);
+        }
+        searchProxies = proxies;
+        searchProxiesVersion = version;
+        return proxies;
+    }
     public synchronized void setAppList(LauncherActivity activity) {
         SettingsManager settingsManager = SettingsManager.getInstance(activity);
         launcherActivity = activity;
@@ -73,45 +115,47 @@ public class LauncherAppsAdapter extends ArrayListAdapter<ApplicationInfo, Launc
         setItems(Collections.unmodifiableList(settingsManager
                 .getVisibleApps(settingsManager.getAppGroupsSorted(true), fullAppSet)));
     }
-    public synchronized void filterBy(String text) {
+    /**
+     * Finds the apps to show for a search query, and the changes needed to show them,
+     * without changing the adapter, so it may be called from a background thread
+     * @param text Search query
+     * @param isCancelled Checked periodically, and if true, the search is abandoned
+     * @return Changes to pass to applyItems on the UI thread, or null if cancelled
+     */
+    @Nullable
+    public ItemsDiff<ApplicationInfo> filterBy(String text, BooleanSupplier isCancelled) {
         boolean showHidden = !text.isEmpty() && launcherActivity.dataStoreEditor.getBoolean(
                 Settings.KEY_SEARCH_HIDDEN, Settings.DEFAULT_SEARCH_HIDDEN);
 
         SettingsManager settingsManager = SettingsManager.getInstance(launcherActivity);
-        final List<ApplicationInfo> newItems =
-                settingsManager.getVisibleApps(settingsManager.getAppGroupsSorted(false),
-                        fullAppSet);
+        final Set<String> groups = new HashSet<>(settingsManager.getAppGroupsSorted(false));
+        if (!showHidden) groups.remove(Settings.HIDDEN_GROUP);
 
-        newItems.removeIf(item -> !StringLib.forSort(SettingsManager.getAppLabel(item))
-                .contains(StringLib.forSort(text)));
-        if (!showHidden)
-            newItems.removeIf(item -> Objects.equals(SettingsManager.getAppGroupMap()
-                    .get(item.packageName), Settings.HIDDEN_GROUP));
+        final boolean ranked = launcherActivity.dataStoreEditor.getBoolean(
+                Settings.KEY_SEARCH_RANKED, Settings.DEFAULT_SEARCH_RANKED);
+        final List<ApplicationInfo> newItems = getSearchIndex()
+                .search(text, groups, SettingsManager.getAppGroupMap(), ranked, isCancelled);
+        if (newItems == null) return null;
 
         boolean showWeb = !text.isEmpty() && launcherActivity.dataStoreEditor
                 .getBoolean(Settings.KEY_SEARCH_WEB, Settings.DEFAULT_SEARCH_WEB);
 
-        // Add search queries
+        // Add web searches, reusing each provider's proxy so it keeps its view.
+        // Proxies may be shown, so their urls are only changed when applied on the UI thread
+        final Map<ApplicationInfo, String> proxyUrls = new HashMap<>();
         if (showWeb && !launcherActivity.isEditing()) {
-
-            final ApplicationInfo googleProxy = new ApplicationInfo();
-            googleProxy.packageName = StringLib.googleSearchForUrl(text);
-            newItems.add(googleProxy);
-
-            final ApplicationInfo youTubeProxy = new ApplicationInfo();
-            youTubeProxy.packageName = StringLib.youTubeSearchForUrl(text);
-            newItems.add(youTubeProxy);
-
-            final ApplicationInfo apkPureProxy = new ApplicationInfo();
-            apkPureProxy.packageName = StringLib.apkPureSearchForUrl(text);
-            newItems.add(apkPureProxy);
-
-            final ApplicationInfo apkMirrorProxy = new ApplicationInfo();
-            apkMirrorProxy.packageName = StringLib.apkMirrorSearchForUrl(text);
-            newItems.add(apkMirrorProxy);
+            for (Map.Entry<SearchProviders.Provider, ApplicationInfo> proxy
+                    : getSearchProxies().entrySet()) {
+                proxyUrls.put(proxy.getValue(), proxy.getKey().urlFor(text));
+                newItems.add(proxy.getValue());
+            }
         }
 
-        setItems(newItems);
+        if (isCancelled.getAsBoolean()) return null;
+        return diffItems(newItems, () -> {
+            for (Map.Entry<ApplicationInfo, String> proxyUrl : proxyUrls.entrySet())
+                proxyUrl.getKey().packageName = proxyUrl.getValue();
+        });
     }
     public void setLauncherActivity(LauncherActivity val) {
         launcherActivity = val;
@@ -131,7 +175,9 @@ public class LauncherAppsAdapter extends ArrayListAdapter<ApplicationInfo, Launc
         @Nullable Boolean darkMode = null;
         @Nullable Boolean showName = null;
         boolean hovered = false;
-        @Nullable Runnable iconRunnable = null;
+        @Nullable Future<?> iconFuture = null;
+        /** Icon currently displayed, which was retained and must be released */
+        @Nullable Drawable shownIcon = null;
         public AppViewHolder(@NonNull View itemView) {
             super(itemView);
         }
@@ -250,51 +296,76 @@ public class LauncherAppsAdapter extends ArrayListAdapter<ApplicationInfo, Launc
         holder.app = app;
 
         // Load Icon
-        IconLoader.loadIcon(holder.app, drawable
+        IconPrefetcher.countBind(app);
+        if (holder.iconFuture != null) holder.iconFuture.cancel(false);
+        holder.iconFuture = IconLoader.loadIcon(holder.app, drawable
                 -> {
-            if (holder.iconRunnable != null) holder.imageView.removeCallbacks(holder.iconRunnable);
             if (drawable == null) return;
-            if (holder.app == app) {
-                if (drawable instanceof BitmapDrawable bitmapDrawable) {
-//                    Bitmap bitmap = ImageLib.getResizedBitmap(
-//                            bitmapDrawable.getBitmap(),
-//                            128 * getItemViewType(position));
-
-                    Bitmap bitmap = bitmapDrawable.getBitmap();
-                    // It's java's fault for allowing this...
-                    if (holder.imageView.getDrawable() instanceof BitmapDrawable currentBd &&
-                            ImageLib.isIdenticalFast(currentBd.getBitmap(), bitmap)) return;
-
-
-                    holder.iconRunnable = () -> holder.imageView.setImageBitmap(bitmap);
-                } else holder.iconRunnable = () -> holder.imageView.setImageDrawable(drawable);
-
-                holder.imageView.post(holder.iconRunnable);
-            }
-            else launcherActivity.launcherService.forEachActivity(a -> {
+            if (holder.app != app) {
+                IconLoader.releaseIcon(drawable);
+                launcherActivity.launcherService.forEachActivity(a -> {
                     LauncherAppsAdapter adapter = launcherActivity.getAppAdapter();
                     if (adapter != null) adapter.notifyItemChanged(app);
+                });
+                return;
+            }
+            // Compares fingerprints, so doesn't need to read any pixels
+            if (IconDrawable.isSame(holder.shownIcon, drawable)) {
+                IconLoader.releaseIcon(drawable);
+                return;
+            }
+            holder.imageView.post(() -> {
+                if (holder.app != app) {
+                    IconLoader.releaseIcon(drawable);
+                    return;
+                }
+                if (drawable instanceof BitmapDrawable bitmapDrawable)
+                    holder.imageView.setImageBitmap(bitmapDrawable.getBitmap());
+                else holder.imageView.setImageDrawable(drawable);
+                // The previous icon may now be reused, if it's no longer cached
+                IconLoader.releaseIcon(holder.shownIcon);
+                holder.shownIcon = drawable;
             });
-        });
+        }, true);
 
         // Load label
+        // (Holders rebound to another app are updated by the resolver's batched notification)
         SettingsManager.getAppLabel(app, label -> {
-            if (holder.app == app) holder.textView.post(() -> holder.textView.setText(label));
-            else launcherActivity.launcherService.forEachActivity(a -> {
-                LauncherAppsAdapter adapter = launcherActivity.getAppAdapter();
-                if (adapter != null) adapter.notifyItemChanged(app);
-            });
+            if (holder.app == app) holder.textView.setText(label);
         });
 
         updateSelected(holder);
     }
 
+    /** @noinspection ClassEscapesDefinedScope*/
+    @Override
+    public void onViewRecycled(@NonNull AppViewHolder holder) {
+        // Don't load icons for holders which were recycled before their icon was loaded
+        if (holder.iconFuture != null) holder.iconFuture.cancel(false);
+        holder.iconFuture = null;
+        // Recycled views aren't displayed, so their icon may be reused
+        holder.imageView.setImageDrawable(null);
+        IconLoader.releaseIcon(holder.shownIcon);
+        holder.shownIcon = null;
+        super.onViewRecycled(holder);
+    }
+
     public void notifySelectionChange(String packageName) {
         for (int i=0; i<items.size(); i++)
             if (Objects.equals(items.get(i).packageName, packageName))
                 notifyItemChanged(i, items.get(i));
     }
 
+    /**
+     * Notifies that items for some packages changed, such as when their labels were resolved
+     * @param packageNames Package names of the changed items
+     */
+    public void notifyPackagesChanged(Set<String> packageNames) {
+        for (int i=0; i<items.size(); i++)
+            if (packageNames.contains(items.get(i).packageName))
+                notifyItemChanged(i, items.get(i));
+    }
+
     @Override
     public long getItemId(int position) {
         return position;
@@ -406,8 +477,8 @@ public class LauncherAppsAdapter extends ArrayListAdapter<ApplicationInfo, Launc
         openAnim.setVisibility(View.VISIBLE);
         openAnim.setAlpha(1F);
         openAnim.setClipToOutline(true);
-        openAnim.setScaleX(Platform.isTv() ? 1.40F : 1.15F);
-        openAnim.setScaleY(Platform.isTv() ? 1.40F : 1.15F);
+        openAnim.setScaleX(getMaxTileScale());
+        openAnim.setScaleY(getMaxTileScale());
 
         ImageView animIcon = openAnim.findViewById(R.id.openIcon);
         ImageView animIconBg = openAnim.findViewById(R.id.openIconBg);
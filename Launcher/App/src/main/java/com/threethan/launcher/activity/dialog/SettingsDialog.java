@@ -355,6 +355,8 @@ public class SettingsDialog extends BasicDialog<LauncherActivity> {
                 Settings.KEY_SEARCH_WEB, Settings.DEFAULT_SEARCH_WEB);
         attachSwitchToSetting(dialog.findViewById(R.id.searchHiddenSwitch),
                 Settings.KEY_SEARCH_HIDDEN, Settings.DEFAULT_SEARCH_HIDDEN);
+        attachSwitchToSetting(dialog.findViewById(R.id.searchRankedSwitch),
+                Settings.KEY_SEARCH_RANKED, Settings.DEFAULT_SEARCH_RANKED);
 
         // Save/load settings
         View loadSettings = dialog.findViewById(R.id.loadSettingsButton);
@@ -1,6 +1,5 @@
 package com.threethan.launcher.activity.support;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
@@ -22,7 +21,11 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import io.reactivex.rxjava3.core.Completable;
 import io.reactivex.rxjava3.core.Single;
 import io.reactivex.rxjava3.functions.Consumer;
 
@@ -36,10 +39,15 @@ import io.reactivex.rxjava3.functions.Consumer;
  *     but instead function using the newer {@link androidx.datastore.core.DataStore} in place of
  *     {@link SharedPreferences}.
  * <p>
- *     In many cases, this may just be a drop-in replacement. However, keep in mind that writes are
- *     asynchronous by default, so async write followed by a read may produce unexpected results.
+ *     In many cases, this may just be a drop-in replacement. Writes are asynchronous by default,
+ *     but are seen by reads immediately. Writes made close together are written in a single
+ *     transaction, as are writes made through the editor returned by edit(), once apply() or
+ *     commit() is called on it. On any other editor, apply() and commit() write pending changes.
  *     You may set 'asyncWrite' to false at any time to get back synchronous behaviours.
  * <p>
+ *     Synchronous reads are served from an in-memory snapshot of the DataStore, which is updated
+ *     whenever its data changes, so they don't block except for the very first read.
+ * <p>
  *     Additional functions are provided for asynchronous reading and better handling of DataStores,
  *     which will be accessible when using this class directly, and make implementation of DataStore
  *     in Java much easier.
@@ -50,24 +58,239 @@ import io.reactivex.rxjava3.functions.Consumer;
  * , rawtypes */
 public class DataStoreEditor implements SharedPreferences, SharedPreferences.Editor {
     private static final String TAG = "DataStoreEditor";
-    private static final Map<String, RxDataStore<Preferences>> dataStoreByName = new HashMap<>();
+    private static final Map<String, Store> storeByName = new HashMap<>();
     /** If true, all write operations will be done asynchronously.
      * If false, all write operations will be blocking. */
     public boolean asyncWrite = true;
     RxDataStore<Preferences> dataStoreRX;
+    private final Store store;
+    // Changes held by an editor returned by edit(), or null for any other editor
+    @Nullable private final Map<Preferences.Key<?>, Object> scope;
+    private boolean scopeEnded = false;
+    private boolean scopeFlushQueued = false;
 
     /** @noinspection rawtypes*/
     final static Class[] classes = new Class[]{
             String.class, Integer.class, Long.class,
             Float.class, Double.class, Boolean.class, Set.class};
 
+    // Writes made within this long of each other are written in the same transaction
+    private static final long FLUSH_DELAY_MS = 50;
+    // Changes in an edit() scope are written anyway once they've waited this long
+    private static final long MAX_BATCH_MS = 1000;
+    // Marks a pending removal, since pending values can't be null
+    private static final Object REMOVED = new Object();
+    private static final ScheduledThreadPoolExecutor flushExecutor
+            = new ScheduledThreadPoolExecutor(1, runnable -> new Thread(runnable, TAG));
+    static {
+        flushExecutor.setKeepAliveTime(30, TimeUnit.SECONDS);
+        flushExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * A DataStore, along with an immutable snapshot of its latest data.
+     * <p>
+     * The snapshot is loaded by observing the DataStore's data, so synchronous reads can use it
+     * directly, instead of blocking on a new query for every key. It's shared by every editor
+     * of the same DataStore.
+     * <p>
+     * Writes are held as pending changes, which reads see immediately. Pending changes are
+     * written together in a single transaction shortly after the first one, or when an
+     * edit() scope ends. While a transaction is in flight, reads see the changes it carries,
+     * and each change is only dropped once the transaction which carried it has finished,
+     * so a later write of an older value is never mistaken for one already stored.
+     * <p>
+     * Transactions are run one after another, in the order they were made, so the snapshot
+     * from the latest one to finish is always the newest.
+     */
+    private static class Store {
+        /** A change carried by a transaction, identified by instance */
+        private static class Change {
+            final Object value;
+            Change(Object value) {
+                this.value = value;
+            }
+        }
+
+        final RxDataStore<Preferences> dataStore;
+        @Nullable private volatile Preferences snapshot;
+        final Map<Preferences.Key<?>, Object> pending = new ConcurrentHashMap<>();
+        final Map<Preferences.Key<?>, Change> inFlight = new ConcurrentHashMap<>();
+        // Transactions which have been made but not finished, and how many of them clear the store
+        private int transactionsInFlight = 0;
+        private volatile int clearsInFlight = 0;
+        private int lastFinishedTransaction = 0;
+        private Completable lastTransaction = Completable.complete();
+        private boolean flushQueued = false;
+        private int transactionCount = 0;
+        Store(RxDataStore<Preferences> dataStore) {
+            this.dataStore = dataStore;
+            //noinspection ResultOfMethodCallIgnored
+            dataStore.data().subscribe(this::onData,
+                    throwable -> Log.e(TAG, "Failed to observe data", throwable));
+        }
+        private synchronized void onData(Preferences preferences) {
+            // The result of a transaction is newer than data observed while it was in flight
+            if (transactionsInFlight == 0) snapshot = preferences;
+        }
+        /**
+         * Gets the latest stored data, only blocking if it hasn't been loaded yet
+         * @return The latest data, or null if it couldn't be read
+         */
+        @Nullable
+        Preferences get() {
+            final Preferences current = snapshot;
+            if (current != null) return current;
+            final Preferences loaded;
+            try {
+                loaded = dataStore.data().blockingFirst();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to read data", e);
+                return null;
+            }
+            synchronized (this) {
+                // The observer may have already set newer data
+                if (snapshot == null) snapshot = loaded;
+                return snapshot;
+            }
+        }
+        /**
+         * Gets a change which hasn't finished being written
+         * @return The new value, {@link #REMOVED}, or null if there is no such change
+         */
+        @Nullable
+        Object getChange(Preferences.Key<?> key) {
+            final Object value = pending.get(key);
+            if (value != null) return value;
+            final Change change = inFlight.get(key);
+            return change == null ? null : change.value;
+        }
+        /** @return True if the store is being cleared, so stored data shouldn't be read */
+        boolean isClearing() {
+            return clearsInFlight > 0;
+        }
+
+        /** Queues a change, which replaces any pending change to the same key */
+        synchronized void put(Preferences.Key<?> key, @Nullable Object value) {
+            // Sets are copied, since callers may keep modifying them
+            if (value instanceof Set<?> set) value = new HashSet<>(set);
+            pending.put(key, value == null ? REMOVED : value);
+        }
+        /** Queues many changes at once, so they're written in the same transaction */
+        synchronized void putAll(Map<Preferences.Key<?>, Object> changes) {
+            for (Map.Entry<Preferences.Key<?>, Object> change : changes.entrySet())
+                put(change.getKey(), change.getValue());
+        }
+        /** Schedules pending changes to be written soon, unless already scheduled */
+        synchronized void queueFlush() {
+            if (flushQueued || pending.isEmpty()) return;
+            flushQueued = true;
+            flushExecutor.schedule(() -> {
+                synchronized (this) {
+                    flushQueued = false;
+                }
+                flush();
+            }, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+        /**
+         * Writes every pending change in a single transaction
+         * @return The result of the transaction, or null if nothing needed to be written
+         */
+        @Nullable
+        synchronized Single<Preferences> flush() {
+            if (pending.isEmpty()) return null;
+            final Map<Preferences.Key<?>, Change> changes = new HashMap<>();
+            for (Map.Entry<Preferences.Key<?>, Object> entry : pending.entrySet()) {
+                final Change change = new Change(entry.getValue());
+                changes.put(entry.getKey(), change);
+                // Added before being removed from pending, so reads always see it
+                inFlight.put(entry.getKey(), change);
+            }
+            pending.clear();
+            return transact(changes, false);
+        }
+        /** Clears all data, along with any changes which haven't been written yet */
+        synchronized Single<Preferences> clear() {
+            pending.clear();
+            inFlight.clear();
+            clearsInFlight++;
+            return transact(new HashMap<>(), true);
+        }
+        /**
+         * Makes a transaction, which starts once the previous one finishes
+         * @param changes Changes to write, which are removed from inFlight once finished
+         * @param clear If true, all other data is cleared
+         */
+        private Single<Preferences> transact(Map<Preferences.Key<?>, Change> changes,
+                                             boolean clear) {
+            final int transaction = ++transactionCount;
+            transactionsInFlight++;
+            final Single<Preferences> result = lastTransaction.onErrorComplete()
+                    .andThen(dataStore.updateDataAsync(prefsIn -> {
+                        MutablePreferences mutablePreferences = prefsIn.toMutablePreferences();
+                        if (clear) mutablePreferences.clear();
+                        for (Map.Entry<Preferences.Key<?>, Change> change : changes.entrySet()) {
+                            final Object value = change.getValue().value;
+                            if (value == REMOVED) mutablePreferences.remove(change.getKey());
+                            //noinspection unchecked
+                            else mutablePreferences.set(
+                                    (Preferences.Key<Object>) change.getKey(), value);
+                        }
+                        return Single.just(mutablePreferences);
+                    })).cache();
+            lastTransaction = result.ignoreElement();
+            //noinspection ResultOfMethodCallIgnored
+            result.subscribe(preferences -> finish(transaction, changes, clear, preferences),
+                    throwable -> {
+                        Log.e(TAG, "Failed to write " + changes.size() + " changes", throwable);
+                        finish(transaction, changes, clear, null);
+                    });
+            return result;
+        }
+        private synchronized void finish(int transaction, Map<Preferences.Key<?>, Change> changes,
+                                         boolean clear, @Nullable Preferences preferences) {
+            if (preferences != null && transaction > lastFinishedTransaction) {
+                snapshot = preferences;
+                lastFinishedTransaction = transaction;
+            }
+            // Only removed if a newer transaction didn't replace them
+            for (Map.Entry<Preferences.Key<?>, Change> change : changes.entrySet())
+                inFlight.remove(change.getKey(), change.getValue());
+            if (clear) clearsInFlight--;
+            transactionsInFlight--;
+        }
+        /**
+         * Writes every pending change now, blocking until it and any earlier transactions
+         * are done
+         * @return True if the last transaction was written successfully
+         */
+        boolean flushNow() {
+            final Completable transaction;
+            synchronized (this) {
+                flush();
+                transaction = lastTransaction;
+            }
+            try {
+                transaction.blockingAwait();
+                return true;
+            } catch (RuntimeException e) {
+                return false;
+            }
+        }
+        synchronized int getTransactionCount() {
+            return transactionCount;
+        }
+    }
+
     /**
      * Creates a new instance for the chosen DataStore of the given context
      * @param context Context from which to get the DataStore
      * @param name Name of the DataStore
      */
     public DataStoreEditor(Context context, String name) {
-        dataStoreRX = getDataStore(context, name);
+        store = getStore(context, name);
+        dataStoreRX = store.dataStore;
+        scope = null;
     }
 
     /**
@@ -75,7 +298,9 @@ public class DataStoreEditor implements SharedPreferences, SharedPreferences.Edi
      * @param context Context from which to get the DataStore
      */
     public DataStoreEditor(Context context) {
-        dataStoreRX = getDataStore(context.getApplicationContext(), "default");
+        store = getStore(context.getApplicationContext(), "default");
+        dataStoreRX = store.dataStore;
+        scope = null;
     }
 
     /**
@@ -83,20 +308,32 @@ public class DataStoreEditor implements SharedPreferences, SharedPreferences.Edi
      * @param file The data store file to operate on (must already exist)
      */
     public DataStoreEditor(File file) {
-        dataStoreRX = getDataStore(file);
-    }
-    synchronized private RxDataStore<Preferences> getDataStore(Context context, String name) {
-        if (dataStoreByName.containsKey(name)) return dataStoreByName.get(name);
-        RxDataStore<Preferences> ds = new RxPreferenceDataStoreBuilder(context, name).build();
-        dataStoreByName.put(name, ds);
-        return ds;
+        store = getStore(file);
+        dataStoreRX = store.dataStore;
+        scope = null;
     }
-    synchronized private RxDataStore<Preferences> getDataStore(File file) {
+    /**
+     * Creates an editor for an edit() scope
+     * @param parent Editor from which edit() was called
+     */
+    private DataStoreEditor(DataStoreEditor parent) {
+        store = parent.store;
+        dataStoreRX = parent.dataStoreRX;
+        asyncWrite = parent.asyncWrite;
+        scope = new HashMap<>();
+    }
+    synchronized private static Store getStore(Context context, String name) {
+        if (storeByName.containsKey(name)) return storeByName.get(name);
+        Store store = new Store(new RxPreferenceDataStoreBuilder(context, name).build());
+        storeByName.put(name, store);
+        return store;
+    }
+    synchronized private static Store getStore(File file) {
         final String name = file.getAbsolutePath();
-        if (dataStoreByName.containsKey(name)) return dataStoreByName.get(name);
-        RxDataStore<Preferences> ds = new RxPreferenceDataStoreBuilder(() -> file).build();
-        dataStoreByName.put(name, ds);
-        return ds;
+        if (storeByName.containsKey(name)) return storeByName.get(name);
+        Store store = new Store(new RxPreferenceDataStoreBuilder(() -> file).build());
+        storeByName.put(name, store);
+        return store;
     }
 
     /**
@@ -114,7 +351,10 @@ public class DataStoreEditor implements SharedPreferences, SharedPreferences.Edi
         SharedPreferencesView sharedPreferencesView
                 = new SharedPreferencesView(sharedPreferences, sharedPreferences.getAll().keySet());
         Map<String, Object> allPrefs = sharedPreferencesView.getAll();
-        allPrefs.forEach(this::putValue);
+        final DataStoreEditor editor = edit();
+        allPrefs.forEach(editor::putValue);
+        if (asyncWrite) editor.apply();
+        else editor.commit();
     }
     /**
      * Migrates default sharedPreferences to this DataStore (calls migrateFrom)
@@ -133,8 +373,10 @@ public class DataStoreEditor implements SharedPreferences, SharedPreferences.Edi
      */
     public void copyFrom(File dataStoreFile) {
         DataStoreEditor other = new DataStoreEditor(dataStoreFile);
-        getAll().forEach((key, o) -> removeValue(key, o.getClass(), true));
-        other.getAll().forEach((key, o) -> putValue(key, o, true));
+        final DataStoreEditor editor = edit();
+        getAll().forEach((key, o) -> editor.removeValue(key, o.getClass()));
+        other.getAll().forEach(editor::putValue);
+        editor.commit();
     }
 
     // Utility Functions
@@ -210,13 +452,10 @@ public class DataStoreEditor implements SharedPreferences, SharedPreferences.Edi
                 "null was passed as default value on a data store read, " +
                 "this may not work as expected!\n A saved value of '" + nnDef +
                 "' will be considered as equivalent to a nonexistent value for this operation.");
-        @SuppressLint("UnsafeOptInUsageWarning")
-        Single<T> value = dataStoreRX.data().firstOrError()
-                .map(prefs -> prefs.get(prefKey)).onErrorReturn(throwable -> nnDef);
-        if (def == null) {
-            @NonNull T r = value.blockingGet();
-            return (r == nullFallbacks.get(tClass) ? null : r);
-        } else return value.blockingGet();
+        final T value = getSnapshotValue(prefKey);
+        if (value == null) return def;
+        if (def == null && value.equals(nnDef)) return null;
+        return value;
     }
     /**
      * Synchronously gets the value of the given key
@@ -226,12 +465,37 @@ public class DataStoreEditor implements SharedPreferences, SharedPreferences.Edi
      * @param <T> Type of the value, should be derived automatically from def
      */
     public <T> T getValue(String key, @NonNull T def) {
-        Preferences.Key<T> prefKey = getKey(key, def);
-        T nullFallback = null;
-        @SuppressLint("UnsafeOptInUsageWarning")
-        Single<T> value = dataStoreRX.data().firstOrError()
-                .map(prefs -> prefs.get(prefKey)).onErrorReturn(throwable -> def);
-        return value.blockingGet();
+        final T value = getSnapshotValue(getKey(key, def));
+        return value == null ? def : value;
+    }
+    /**
+     * Reads a key from writes which haven't finished, or else from the latest snapshot,
+     * which only blocks if it isn't loaded yet
+     */
+    @Nullable
+    private <T> T getSnapshotValue(Preferences.Key<T> prefKey) {
+        Object change = getScopeChange(prefKey);
+        if (change == null) change = store.getChange(prefKey);
+        if (change == REMOVED) return null;
+        //noinspection unchecked
+        if (change != null) return (T) change;
+        if (store.isClearing()) return null;
+        final Preferences preferences = store.get();
+        if (preferences == null) return null;
+        try {
+            return preferences.get(prefKey);
+        } catch (ClassCastException e) {
+            // A value of another type was saved to the same key
+            return null;
+        }
+    }
+    /** @return A change held by this editor's edit() scope, {@link #REMOVED}, or null if none */
+    @Nullable
+    private Object getScopeChange(Preferences.Key<?> prefKey) {
+        if (scope == null) return null;
+        synchronized (scope) {
+            return scope.get(prefKey);
+        }
     }
     /**
      * Asynchronously gets the value of the given key
@@ -268,13 +532,7 @@ public class DataStoreEditor implements SharedPreferences, SharedPreferences.Edi
      * @param <T> Type of the value, should be derived automatically from tClass
      */
     public <T> void putValue(String key, @Nullable T value, Class<T> tClass) {
-        boolean returnvalue;
-        Preferences.Key<T> prefKey = getKey(key, tClass);
-        Single<Preferences> updateResult =  dataStoreRX.updateDataAsync(prefsIn -> {
-            MutablePreferences mutablePreferences = prefsIn.toMutablePreferences();
-            mutablePreferences.set(prefKey, value);
-            return Single.just(mutablePreferences);
-        });
+        putValue(key, value, tClass, false);
     }
     /**
      * Writes a value which matches the given class
@@ -284,14 +542,7 @@ public class DataStoreEditor implements SharedPreferences, SharedPreferences.Edi
      * @param <T> Type of the value, should be derived automatically from tClass
      */
     public <T> void putValue(String key, @Nullable T value, Class<T> tClass, boolean synchronous) {
-        boolean returnvalue;
-        Preferences.Key<T> prefKey = getKey(key, tClass);
-        Single<Preferences> updateResult =  dataStoreRX.updateDataAsync(prefsIn -> {
-            MutablePreferences mutablePreferences = prefsIn.toMutablePreferences();
-            mutablePreferences.set(prefKey, value);
-            return Single.just(mutablePreferences);
-        });
-        if (synchronous) { Preferences ignored = updateResult.blockingGet(); }
+        put(getKey(key, tClass), value, synchronous);
     }
 
     /**
@@ -310,14 +561,7 @@ public class DataStoreEditor implements SharedPreferences, SharedPreferences.Edi
      * @param <T> Type of the value, should be derived automatically from value
      */
     public <T> void putValue(String key, @NonNull T value, boolean synchronous) {
-        boolean returnvalue;
-        Preferences.Key<T> prefKey = getKey(key, value);
-        Single<Preferences> updateResult =  dataStoreRX.updateDataAsync(prefsIn -> {
-            MutablePreferences mutablePreferences = prefsIn.toMutablePreferences();
-            mutablePreferences.set(prefKey, value);
-            return Single.just(mutablePreferences);
-        });
-        if (synchronous) { Preferences ignored = updateResult.blockingGet(); }
+        put(getKey(key, value), value, synchronous);
     }
 
     /**
@@ -336,31 +580,76 @@ public class DataStoreEditor implements SharedPreferences, SharedPreferences.Edi
      * @param <T> Type of the value, should be derived automatically from tClass
      */
     public <T> void removeValue(String key, Class<T> tClass, boolean synchronous){
-        boolean returnvalue;
-        Preferences.Key<T> prefKey = getKey(key, tClass);
-        @SuppressLint("UnsafeOptInUsageWarning")
-        Single<Preferences> updateResult =  dataStoreRX.updateDataAsync(prefsIn -> {
-            MutablePreferences mutablePreferences = prefsIn.toMutablePreferences();
-            T remove = mutablePreferences.remove(prefKey);
-            return Single.just(mutablePreferences);
-        });
-        if (synchronous) { Preferences ignored = updateResult.blockingGet(); }
+        put(getKey(key, tClass), null, synchronous);
+    }
+
+    /**
+     * Writes a change, either now or batched with other changes soon after.
+     * Inside an edit() scope, changes are held until the scope ends, or until they've
+     * waited too long.
+     * @param value New value, or null to remove the key
+     */
+    private void put(Preferences.Key<?> key, @Nullable Object value, boolean synchronous) {
+        if (scope == null) {
+            store.put(key, value);
+            if (synchronous || !asyncWrite) store.flushNow();
+            else store.queueFlush();
+            return;
+        }
+        synchronized (scope) {
+            if (scopeEnded) throw new IllegalStateException(
+                    "Can't write to an editor after calling apply() or commit()");
+            // Sets are copied, since callers may keep modifying them
+            if (value instanceof Set<?> set) value = new HashSet<>(set);
+            scope.put(key, value == null ? REMOVED : value);
+            if (scopeFlushQueued) return;
+            scopeFlushQueued = true;
+        }
+        flushExecutor.schedule(this::flushOverdueScope, MAX_BATCH_MS, TimeUnit.MILLISECONDS);
+    }
+    /** Writes the changes held by an edit() scope which has stayed open for too long */
+    private void flushOverdueScope() {
+        assert scope != null;
+        synchronized (scope) {
+            scopeFlushQueued = false;
+            if (scopeEnded || scope.isEmpty()) return;
+            Log.w(TAG, "edit() scope was open for too long, writing anyway");
+            store.putAll(scope);
+            scope.clear();
+        }
+        store.queueFlush();
+    }
+    /** Ends this editor's edit() scope, if it has one, moving its changes to the store */
+    private void endScope() {
+        if (scope == null) return;
+        synchronized (scope) {
+            if (scopeEnded) throw new IllegalStateException(
+                    "apply() or commit() was already called on this editor");
+            scopeEnded = true;
+            store.putAll(scope);
+            scope.clear();
+        }
     }
 
     /**
      * Asynchronously clears ALL data in the store
      */
     public DataStoreEditor clear(){
-        boolean returnvalue;
-        @SuppressLint("UnsafeOptInUsageWarning")
-        Single<Preferences> updateResult =  dataStoreRX.updateDataAsync(prefsIn -> {
-            MutablePreferences mutablePreferences = prefsIn.toMutablePreferences();
-            mutablePreferences.clear();
-            return Single.just(mutablePreferences);
-        });
+        final Single<Preferences> result = store.clear();
+        if (!asyncWrite) try {
+            result.blockingGet();
+        } catch (RuntimeException ignored) {} // Already logged
         return this;
     }
 
+    /**
+     * @return The number of write transactions made to this editor's DataStore by this process,
+     * each of which rewrites the whole file
+     */
+    public int getTransactionCount() {
+        return store.getTransactionCount();
+    }
+
     // String
     /** Synchronously reads and returns a value */
     public String getString(String key, String def) {
@@ -541,28 +830,38 @@ public class DataStoreEditor implements SharedPreferences, SharedPreferences.Edi
     }
 
     /**
-     * Commit/apply is no longer needed, and does nothing.
-     * Keep in mind that all write operations are performed asynchronously.
+     * Ends this editor's edit() scope, if it has one, and writes its changes along with any
+     * other pending changes, blocking until done
+     * @return True if the changes were written successfully
+     * @throws IllegalStateException If this editor's edit() scope already ended
      */
-    @Deprecated
-    public boolean commit() {return false;}
+    public boolean commit() {
+        endScope();
+        return store.flushNow();
+    }
 
     /**
-     * Commit/apply is no longer needed, and does nothing.
-     * Keep in mind that all write operations are performed asynchronously.
+     * Ends this editor's edit() scope, if it has one, and writes its changes along with any
+     * other pending changes asynchronously, in a single transaction
+     * @throws IllegalStateException If this editor's edit() scope already ended
      */
-    @Deprecated
-    public void apply() {}
+    public void apply() {
+        endScope();
+        store.queueFlush();
+    }
 
     // Compat (sharedpref)
     /**
-     * This is included for compatiblity, but simply returns the same object,
-     * which implements both SharedPreferences and SharedPreferences.Editor
+     * Begins an edit scope, which must be ended by calling apply() or commit() on the
+     * returned editor. Changes made through it are only seen by that editor until then,
+     * and are written together in a single transaction.
+     * <p>
+     * The returned editor implements both SharedPreferences and SharedPreferences.Editor,
+     * and uses the same DataStore as this one
      */
     @Override
-    @Deprecated
     public DataStoreEditor edit() {
-        return this;
+        return new DataStoreEditor(this);
     }
 
     /**
@@ -593,7 +892,20 @@ public class DataStoreEditor implements SharedPreferences, SharedPreferences.Edi
         return ret;
     }
     private Map<Preferences.Key<?>, ?> getAllKeyVal() {
-        return dataStoreRX.data().blockingFirst().asMap();
+        final Preferences preferences = store.isClearing() ? null : store.get();
+        final Map<Preferences.Key<?>, Object> all = new HashMap<>();
+        if (preferences != null) all.putAll(preferences.asMap());
+        final Map<Preferences.Key<?>, Object> changes = new HashMap<>();
+        store.inFlight.forEach((key, change) -> changes.put(key, change.value));
+        changes.putAll(store.pending);
+        if (scope != null) synchronized (scope) {
+            changes.putAll(scope);
+        }
+        for (Map.Entry<Preferences.Key<?>, Object> change : changes.entrySet()) {
+            if (change.getValue() == REMOVED) all.remove(change.getKey());
+            else all.put(change.getKey(), change.getValue());
+        }
+        return all;
     }
 }
 
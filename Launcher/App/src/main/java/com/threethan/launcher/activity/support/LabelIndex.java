@@ -0,0 +1,97 @@
+package com.threethan.launcher.activity.support;
+
+import androidx.annotation.Nullable;
+
+import com.threethan.launchercore.lib.StringLib;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread-safe index of app labels, by package name.
+ * <p>
+ * Each entry holds the label along with its sort and search forms, which are computed once
+ * whenever the label changes, so sorting and searching never need to recompute them.
+ * Entries are keyed by package name rather than ApplicationInfo, so they stay valid
+ * when the package list is reloaded.
+ */
+public abstract class LabelIndex {
+    /** An app's label, and its precomputed forms */
+    public static class Entry {
+        public final String label;
+        /** The label, processed by {@link StringLib#forSort} */
+        public final String sortKey;
+        /** The label, processed by {@link StringLib#forSearch} */
+        public final String searchKey;
+        /** True if the label was set by the user, and so shouldn't be replaced by metadata */
+        public final boolean custom;
+        Entry(String label, boolean custom) {
+            this.label = label;
+            this.sortKey = StringLib.forSort(label);
+            this.searchKey = StringLib.forSearch(label);
+            this.custom = custom;
+        }
+    }
+
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private static final AtomicInteger version = new AtomicInteger();
+
+    /** @return The indexed label of a package, or null if it isn't indexed yet */
+    @Nullable
+    public static Entry get(String packageName) {
+        return entries.get(packageName);
+    }
+
+    /**
+     * Sets the label of a package, only recomputing its forms if it changed
+     * @param packageName Package name of the app
+     * @param label New label
+     * @param custom True if the label was set by the user
+     * @return The entry for the package
+     */
+    public static Entry put(String packageName, String label, boolean custom) {
+        return entries.compute(packageName, (k, entry) -> {
+            if (entry != null && entry.custom == custom && entry.label.equals(label)) return entry;
+            version.incrementAndGet();
+            return new Entry(label, custom);
+        });
+    }
+
+    /**
+     * Sets the label of a package from metadata, unless the user set a custom label for it
+     * @param packageName Package name of the app
+     * @param label Label from metadata
+     */
+    public static void putIfNotCustom(String packageName, String label) {
+        entries.compute(packageName, (k, entry) -> {
+            if (entry != null && (entry.custom || entry.label.equals(label))) return entry;
+            version.incrementAndGet();
+            return new Entry(label, false);
+        });
+    }
+
+    /** Removes a package's label, so it will be looked up again next time */
+    public static void remove(String packageName) {
+        if (entries.remove(packageName) != null) version.incrementAndGet();
+    }
+
+    /** Removes every label */
+    public static void clear() {
+        entries.clear();
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return A number which changes whenever any label changes,
+     * so indexes built from labels can tell when they're out of date
+     */
+    public static int getVersion() {
+        return version.get();
+    }
+
+    /** @return The number of indexed labels */
+    public static int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,163 @@
+package com.threethan.launcher.activity.support;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import com.threethan.launcher.activity.LauncherActivity;
+import com.threethan.launcher.activity.adapter.LauncherAppsAdapter;
+import com.threethan.launchercore.metadata.MetaMetadata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Resolves app labels from the MetaMetadata repo in the background.
+ * <p>
+ * Requests for the same package are merged, and requests made close together are resolved
+ * as one batch on a single background thread, with the network requests themselves bounded
+ * by {@link MetaMetadata#getForPackages}. Once a batch is resolved, its callbacks are run and
+ * launcher activities are notified together in a single post to the UI thread.
+ * <p>
+ * Callers which ask for a package while it's queued or being resolved wait for the same result.
+ * Each package's label is only resolved once per process, unless {@link #clear()} or
+ * {@link #forget(String)} is called, and packages without a label aren't queued again
+ * until MISS_RETRY_MS passes.
+ */
+public abstract class LabelResolver {
+    // Requests made within this long of the first are resolved in the same batch
+    private static final long BATCH_DELAY_MS = 100;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    // Packages without a label aren't queued again for this long
+    private static final long MISS_RETRY_MS = 5 * 60 * 1000L;
+
+    private static final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+            runnable -> new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, "LabelResolver"));
+    static {
+        executor.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+    }
+    private static final Handler uiHandler = new Handler(Looper.getMainLooper());
+
+    // Callbacks waiting on each queued package, guarded by the class lock
+    private static Map<String, List<Consumer<String>>> pending = new LinkedHashMap<>();
+    // Callbacks waiting on each package of the batch being resolved, guarded by the class lock
+    private static final Map<String, List<Consumer<String>>> resolving = new HashMap<>();
+    private static boolean batchQueued = false;
+    // Packages whose labels were resolved already, so they aren't queued again
+    private static final Set<String> resolved = ConcurrentHashMap.newKeySet();
+    // When each package was last found to have no label
+    private static final Map<String, Long> missedAtMs = new ConcurrentHashMap<>();
+
+    /**
+     * Queues a package's label to be resolved, or waits for it if it's already queued
+     * @param packageName Package name of the app
+     * @param onLabel Called on the UI thread with the label, if the app has one.
+     *                Not called if the label was already resolved (and so is in the
+     *                LabelIndex), or if no label was found for it recently.
+     */
+    public static void resolve(String packageName, Consumer<String> onLabel) {
+        // Checked before locking, since this is called whenever an app is shown
+        if (isSettled(packageName)) return;
+        synchronized (LabelResolver.class) {
+            if (isSettled(packageName)) return;
+            List<Consumer<String>> callbacks = resolving.get(packageName);
+            if (callbacks == null) callbacks = pending.get(packageName);
+            if (callbacks != null) {
+                callbacks.add(onLabel);
+                return;
+            }
+            final List<Consumer<String>> newCallbacks = new ArrayList<>(1);
+            newCallbacks.add(onLabel);
+            pending.put(packageName, newCallbacks);
+            if (batchQueued) return;
+            batchQueued = true;
+        }
+        executor.schedule(LabelResolver::resolveBatch, BATCH_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** @return True if a package's label was resolved, or recently found not to exist */
+    private static boolean isSettled(String packageName) {
+        if (resolved.contains(packageName)) return true;
+        final Long missedMs = missedAtMs.get(packageName);
+        return missedMs != null && System.currentTimeMillis() - missedMs < MISS_RETRY_MS;
+    }
+
+    /** Forgets which packages were resolved, so they will be resolved again */
+    public static void clear() {
+        resolved.clear();
+        missedAtMs.clear();
+    }
+
+    /** Forgets that a package was resolved, such as when it's installed or removed */
+    public static void forget(String packageName) {
+        resolved.remove(packageName);
+        missedAtMs.remove(packageName);
+    }
+
+    private static void resolveBatch() {
+        final Map<String, List<Consumer<String>>> batch;
+        synchronized (LabelResolver.class) {
+            batch = pending;
+            pending = new LinkedHashMap<>();
+            batchQueued = false;
+            resolving.putAll(batch);
+        }
+        final Map<String, String> labels = new LinkedHashMap<>();
+        try {
+            final Map<String, MetaMetadata.App> metadata
+                    = MetaMetadata.getForPackages(batch.keySet());
+            for (Map.Entry<String, MetaMetadata.App> entry : metadata.entrySet()) {
+                final String label = entry.getValue().label();
+                if (label == null || label.isEmpty()) continue;
+                labels.put(entry.getKey(), label);
+                SettingsManager.storeMetaLabel(entry.getKey(), label);
+            }
+        } finally {
+            // Callbacks are added to the batch's lists while resolving, until removed here
+            final long nowMs = System.currentTimeMillis();
+            synchronized (LabelResolver.class) {
+                for (String packageName : batch.keySet()) {
+                    resolving.remove(packageName);
+                    if (labels.containsKey(packageName)) resolved.add(packageName);
+                    else missedAtMs.put(packageName, nowMs);
+                }
+            }
+        }
+        if (labels.isEmpty()) return;
+
+        uiHandler.post(() -> {
+            for (Map.Entry<String, String> label : labels.entrySet()) {
+                final List<Consumer<String>> callbacks = batch.get(label.getKey());
+                if (callbacks != null)
+                    for (Consumer<String> callback : callbacks) callback.accept(label.getValue());
+            }
+            notifyAdapters(labels.keySet());
+        });
+    }
+
+    private static void notifyAdapters(Set<String> packageNames) {
+        final LauncherActivity foreground = LauncherActivity.getForegroundInstance();
+        if (foreground == null || foreground.launcherService == null) return;
+        // The foreground activity may be visited twice, but should only be notified once
+        final Set<LauncherAppsAdapter> adapters
+                = Collections.newSetFromMap(new IdentityHashMap<>());
+        foreground.launcherService.forEachActivity(a -> {
+            final LauncherAppsAdapter adapter = a.getAppAdapter();
+            if (adapter != null && adapters.add(adapter)) adapter.notifyPackagesChanged(packageNames);
+        });
+    }
+}
@@ -0,0 +1,358 @@
+package com.threethan.launcher.activity.support;
+
+import android.content.pm.ApplicationInfo;
+
+import androidx.annotation.Nullable;
+
+import com.threethan.launchercore.lib.StringLib;
+import com.threethan.launchercore.util.App;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * An index of apps for searching, built once for a set of apps and their labels.
+ * <p>
+ * Each entry holds the app's search-normalized label, the words of that label and their
+ * initials, the app-specific part of its package name, a bitmask of the characters in all of
+ * these, and when the app was last launched. Entries are stored in display order, so a query
+ * only needs to check each entry's precomputed fields, without reading labels, settings or
+ * sorting again.
+ * <p>
+ * Without ranking, queries are matched as substrings of the label, or as a prefix of the last
+ * segment of an app's package name, and results are in display order.
+ * With ranking, queries may also match the initials of the label's words, or a word with a
+ * typo or two, and results are ordered by how well they match, then how recently they were
+ * launched. Scoring reuses buffers owned by the index, so it doesn't allocate.
+ * <p>
+ * Entries which lack any character of the query are rejected by their mask before any string
+ * is compared, or allowed only as many missing characters as typos when ranking.
+ * <p>
+ * Searches may run on a background thread, and be cancelled part way through when a newer
+ * query makes them obsolete.
+ * <p>
+ * The matches of the last query are kept, so that a query which extends it is only checked
+ * against those. Everything is checked again when a character is deleted or the query is
+ * otherwise edited, and a new index (with no previous matches) is built when the apps,
+ * labels or launch times change.
+ */
+public class SearchIndex {
+    // Scores of each kind of match, from best to worst
+    private static final int SCORE_EXACT = 1000;
+    private static final int SCORE_PREFIX = 900;
+    private static final int SCORE_WORD_PREFIX = 800; // Less one for each word skipped
+    private static final int SCORE_ACRONYM = 700;
+    private static final int SCORE_SUBSTRING = 600;
+    private static final int SCORE_PACKAGE_PREFIX = 500;
+    private static final int SCORE_FUZZY = 400; // Less SCORE_PER_EDIT for each typo
+    private static final int SCORE_PER_EDIT = 100;
+    private static final int MAX_WORD_PENALTY = 9;
+    // Recently launched apps rank higher, but never above a better kind of match
+    private static final int MAX_RECENCY_BONUS = 90;
+    private static final long RECENCY_WINDOW_MS = TimeUnit.DAYS.toMillis(30);
+    // Queries of at least this length may contain one, then two typos
+    private static final int ONE_EDIT_LENGTH = 4;
+    private static final int TWO_EDIT_LENGTH = 8;
+    // Entries checked between checks for cancellation
+    private static final int CANCEL_CHECK_INTERVAL = 64;
+
+    /** A single searchable app */
+    public static class Entry {
+        public final ApplicationInfo app;
+        /** The label, processed by {@link StringLib#forSearch} */
+        public final String searchKey;
+        /** The words of the search key */
+        public final String[] tokens;
+        /** The first character of each word of the search key */
+        public final String initials;
+        /** The last segment of the package name, in lower case */
+        public final String packageToken;
+        /** When the app was last launched, or 0 if it never was */
+        public final long lastLaunchMs;
+        final long charMask;
+        Entry(ApplicationInfo app, String searchKey, long lastLaunchMs) {
+            this.app = app;
+            this.searchKey = searchKey;
+            this.tokens = searchKey.isEmpty() ? new String[0] : searchKey.split(" ");
+            final StringBuilder initials = new StringBuilder(tokens.length);
+            for (String token : tokens) if (!token.isEmpty()) initials.append(token.charAt(0));
+            this.initials = initials.toString();
+            // Websites and shortcuts don't have a meaningful package name
+            final String packageName = app.packageName.toLowerCase();
+            this.packageToken = App.isWebsite(packageName) || App.isShortcut(packageName)
+                    ? "" : packageName.substring(packageName.lastIndexOf('.') + 1);
+            this.lastLaunchMs = lastLaunchMs;
+            this.charMask = charMask(searchKey) | charMask(packageToken);
+        }
+    }
+
+    private final Entry[] entries;
+    private final Collection<ApplicationInfo> source;
+    private final int labelVersion;
+    private final int launchCount;
+    // Normalized last query, and the indexes of the entries which matched it (before filtering
+    // by group) in the first lastMatchCount elements of matches
+    @Nullable private String lastQuery = null;
+    private boolean lastRanked = false;
+    private final int[] matches;
+    private int lastMatchCount = 0;
+    private int lastScanCount = 0;
+    // Buffers reused by every search, so scoring doesn't allocate
+    private final int[] scores;
+    private final long[] rankKeys;
+    private int[] editRow;
+    private int[] editPrevRow;
+
+    private SearchIndex(Entry[] entries, Collection<ApplicationInfo> source,
+                        int labelVersion, int launchCount) {
+        this.entries = entries;
+        this.source = source;
+        this.labelVersion = labelVersion;
+        this.launchCount = launchCount;
+        this.matches = new int[entries.length];
+        this.scores = new int[entries.length];
+        this.rankKeys = new long[entries.length];
+        int maxKeyLength = 0;
+        for (Entry entry : entries) maxKeyLength = Math.max(maxKeyLength, entry.searchKey.length());
+        this.editRow = new int[maxKeyLength + 1];
+        this.editPrevRow = new int[maxKeyLength + 1];
+    }
+
+    /**
+     * Builds an index of apps, in the order they're displayed (synchronous, may be slow)
+     * @param apps Every app which may be searched for
+     * @return The new index
+     */
+    public static SearchIndex build(Collection<ApplicationInfo> apps) {
+        final int launchCount = SettingsManager.getAppLaunchCount();
+        final List<ApplicationInfo> sorted = new ArrayList<>(apps);
+        final Map<ApplicationInfo, String> sortKeys = new HashMap<>();
+        for (ApplicationInfo app : sorted) sortKeys.put(app, SettingsManager.getSortableAppLabel(app));
+        sorted.sort(Comparator.comparing(sortKeys::get));
+
+        final Entry[] entries = new Entry[sorted.size()];
+        for (int i = 0; i < entries.length; i++) {
+            final ApplicationInfo app = sorted.get(i);
+            entries[i] = new Entry(app, SettingsManager.getSearchableAppLabel(app),
+                    SettingsManager.getAppLaunchTime(app.packageName));
+        }
+        // Read after building, since building may index labels for the first time
+        return new SearchIndex(entries, apps, LabelIndex.getVersion(), launchCount);
+    }
+
+    /**
+     * Creates an index from entries which are already built, without reading any settings,
+     * so searching can be measured without a device
+     * @param entries Entries in the order they're displayed
+     * @return The new index
+     */
+    static SearchIndex of(Entry[] entries) {
+        return new SearchIndex(entries, Collections.emptyList(), LabelIndex.getVersion(), 0);
+    }
+
+    /**
+     * Checks if this index no longer matches the apps, labels or launches it would be built from
+     * @param apps Every app which may be searched for
+     * @return True if the index should be rebuilt
+     */
+    public boolean isStale(Collection<ApplicationInfo> apps) {
+        return apps != source || labelVersion != LabelIndex.getVersion()
+                || launchCount != SettingsManager.getAppLaunchCount();
+    }
+
+    /** @return The number of apps in the index */
+    public int size() {
+        return entries.length;
+    }
+
+    /**
+     * Finds the apps matching a query.
+     * <p>
+     * If the query extends the previous one, such as when typing another character,
+     * only the previous query's matches are checked, since nothing else can match.
+     * @param query Search query, which will be normalized
+     * @param groups Groups whose apps may be returned
+     * @param groupMap The group of each app, by package name
+     * @param ranked If true, also match initials and typos, and return the best matches first.
+     *               Otherwise, only match substrings, and return matches in display order.
+     * @param isCancelled Checked periodically, and if true, the search is abandoned
+     * @return Matching apps in the given groups, or null if the search was cancelled
+     */
+    @Nullable
+    public synchronized List<ApplicationInfo> search(String query, Set<String> groups,
+                                                     Map<String, String> groupMap,
+                                                     boolean ranked, BooleanSupplier isCancelled) {
+        final String normalized = StringLib.forSearch(query);
+        final long queryMask = charMask(normalized);
+        final int maxEdits = ranked ? maxEdits(normalized) : 0;
+        final long now = System.currentTimeMillis();
+
+        // Group filtering happens afterwards, so groups changing doesn't invalidate matches.
+        // Typos allowed by a longer query may match entries which the previous query didn't.
+        final boolean refine = lastQuery != null && !lastQuery.isEmpty()
+                && normalized.startsWith(lastQuery) && ranked == lastRanked
+                && (!ranked || maxEdits == maxEdits(lastQuery));
+        final int candidateCount = refine ? lastMatchCount : entries.length;
+        int matchCount = 0;
+        for (int i = 0; i < candidateCount; i++) {
+            if (i % CANCEL_CHECK_INTERVAL == 0 && isCancelled.getAsBoolean()) {
+                // Matches were partly overwritten, so the next search must check everything
+                lastQuery = null;
+                lastMatchCount = 0;
+                return null;
+            }
+            final int index = refine ? matches[i] : i;
+            final Entry entry = entries[index];
+            if (ranked) {
+                final int score = score(entry, normalized, queryMask, maxEdits, now);
+                if (score == 0) continue;
+                scores[index] = score;
+            } else {
+                if ((entry.charMask & queryMask) != queryMask) continue;
+                if (!matches(entry, normalized)) continue;
+            }
+            // Matches are in ascending order, so this never overwrites an unread candidate
+            matches[matchCount++] = index;
+        }
+        lastQuery = normalized;
+        lastRanked = ranked;
+        lastMatchCount = matchCount;
+        lastScanCount = candidateCount;
+
+        // Keys sort by descending score, then ascending index (display order)
+        int resultCount = 0;
+        for (int i = 0; i < matchCount; i++) {
+            final int index = matches[i];
+            final String group = groupMap.get(entries[index].app.packageName);
+            if (group == null || !groups.contains(group)) continue;
+            rankKeys[resultCount++] = ranked
+                    ? ((long) (Integer.MAX_VALUE - scores[index]) << 32) | index : index;
+        }
+        if (ranked) Arrays.sort(rankKeys, 0, resultCount);
+
+        final List<ApplicationInfo> results = new ArrayList<>(resultCount);
+        for (int i = 0; i < resultCount; i++) results.add(entries[(int) rankKeys[i]].app);
+        return results;
+    }
+
+    /**
+     * @return The number of entries checked by the last search, which is less than the size
+     * of the index if it was narrowed from the search before it
+     */
+    public synchronized int getLastScanCount() {
+        return lastScanCount;
+    }
+
+    /** @return True if an entry matches a normalized query, without ranking */
+    static boolean matches(Entry entry, String normalized) {
+        return entry.searchKey.contains(normalized) || entry.packageToken.startsWith(normalized);
+    }
+
+    /**
+     * Scores how well an entry matches a normalized query
+     * @return The score, higher for better matches, or 0 if the entry doesn't match
+     */
+    private int score(Entry entry, String query, long queryMask, int maxEdits, long now) {
+        final int score = matchScore(entry, query, queryMask, maxEdits);
+        return score == 0 ? 0 : score + recencyBonus(entry.lastLaunchMs, now);
+    }
+    private int matchScore(Entry entry, String query, long queryMask, int maxEdits) {
+        final String key = entry.searchKey;
+        if ((entry.charMask & queryMask) == queryMask) {
+            if (key.startsWith(query))
+                return key.length() == query.length() ? SCORE_EXACT : SCORE_PREFIX;
+            int word = 0;
+            for (int i = key.indexOf(' '); i >= 0; i = key.indexOf(' ', i + 1)) {
+                word++;
+                if (key.startsWith(query, i + 1))
+                    return SCORE_WORD_PREFIX - Math.min(word, MAX_WORD_PENALTY);
+            }
+            if (query.length() > 1 && entry.initials.startsWith(query)) return SCORE_ACRONYM;
+            if (key.contains(query)) return SCORE_SUBSTRING;
+            if (entry.packageToken.startsWith(query)) return SCORE_PACKAGE_PREFIX;
+        }
+        // Each character of the query missing from the entry needs at least one edit
+        if (maxEdits == 0 || Long.bitCount(queryMask & ~entry.charMask) > maxEdits) return 0;
+        int edits = maxEdits + 1;
+        // Queries of several words are compared to the whole label, others to each word
+        if (query.indexOf(' ') >= 0) edits = prefixEdits(query, key, maxEdits);
+        else for (String token : entry.tokens) {
+            edits = Math.min(edits, prefixEdits(query, token, maxEdits));
+            if (edits == 1) break;
+        }
+        return edits > maxEdits ? 0 : SCORE_FUZZY - SCORE_PER_EDIT * edits;
+    }
+
+    /**
+     * Gets the fewest edits which turn a query into any prefix of the target,
+     * using two rows of the edit distance table in buffers owned by the index
+     * @return The number of edits, or maxEdits + 1 if more are needed
+     */
+    private int prefixEdits(String query, String target, int maxEdits) {
+        final int queryLength = query.length();
+        // Prefixes longer than this need more than maxEdits deletions
+        final int columns = Math.min(target.length(), queryLength + maxEdits);
+        if (columns < queryLength - maxEdits) return maxEdits + 1;
+        for (int j = 0; j <= columns; j++) editPrevRow[j] = j;
+        for (int i = 1; i <= queryLength; i++) {
+            final char c = query.charAt(i - 1);
+            editRow[0] = i;
+            int rowMin = i;
+            for (int j = 1; j <= columns; j++) {
+                final int substitution = editPrevRow[j - 1] + (c == target.charAt(j - 1) ? 0 : 1);
+                final int edits = Math.min(substitution,
+                        Math.min(editPrevRow[j], editRow[j - 1]) + 1);
+                editRow[j] = edits;
+                if (edits < rowMin) rowMin = edits;
+            }
+            if (rowMin > maxEdits) return maxEdits + 1;
+            final int[] swap = editPrevRow;
+            editPrevRow = editRow;
+            editRow = swap;
+        }
+        int best = editPrevRow[0];
+        for (int j = 1; j <= columns; j++) best = Math.min(best, editPrevRow[j]);
+        return best;
+    }
+
+    /** @return The number of typos allowed in a normalized query */
+    static int maxEdits(String normalized) {
+        if (normalized.length() >= TWO_EDIT_LENGTH) return 2;
+        if (normalized.length() >= ONE_EDIT_LENGTH) return 1;
+        return 0;
+    }
+
+    /** @return A bonus which decreases linearly from launch to the end of the recency window */
+    static int recencyBonus(long lastLaunchMs, long now) {
+        if (lastLaunchMs <= 0) return 0;
+        final long age = Math.max(0, now - lastLaunchMs);
+        if (age >= RECENCY_WINDOW_MS) return 0;
+        return (int) (MAX_RECENCY_BONUS * (RECENCY_WINDOW_MS - age) / RECENCY_WINDOW_MS);
+    }
+
+    /**
+     * Gets a bitmask of the characters in a string, with one bit for each letter and digit,
+     * and the rest shared by all other characters
+     */
+    static long charMask(String string) {
+        long mask = 0;
+        for (int i = 0; i < string.length(); i++) mask |= charBit(string.charAt(i));
+        return mask;
+    }
+    private static long charBit(char c) {
+        if (c >= 'a' && c <= 'z') return 1L << (c - 'a');
+        if (c >= '0' && c <= '9') return 1L << (26 + c - '0');
+        if (c == ' ') return 0;
+        // Other characters are spread over the remaining bits
+        return 1L << (36 + c % 28);
+    }
+}
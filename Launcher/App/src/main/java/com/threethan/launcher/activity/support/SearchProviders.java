@@ -0,0 +1,74 @@
+package com.threethan.launcher.activity.support;
+
+import com.threethan.launchercore.lib.StringLib;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A registry of the web search engines which are shown at the end of search results.
+ * <p>
+ * Each provider is a url to which the query is appended. Providers are shown in the order
+ * they were registered, and more may be registered at any time, such as for internal
+ * search endpoints. Adapters keep one proxy app per provider, and only change its url as
+ * the query changes, so search results keep the same items (and views) while typing.
+ */
+public abstract class SearchProviders {
+    /** A single web search engine */
+    public static class Provider {
+        /** The start of every search url, to which the query is appended */
+        public final String urlPrefix;
+        Provider(String urlPrefix) {
+            this.urlPrefix = urlPrefix;
+        }
+        /** @return The url which searches for a query */
+        public String urlFor(String query) {
+            return urlPrefix + query;
+        }
+    }
+
+    private static final List<Provider> providers = new CopyOnWriteArrayList<>();
+    private static final AtomicInteger version = new AtomicInteger();
+    static {
+        register(StringLib.GOOGLE_SEARCH_PRE);
+        register(StringLib.YOUTUBE_SEARCH_PRE);
+        register(StringLib.APK_PURE_SEARCH_PRE);
+        register(StringLib.APK_MIRROR_SEARCH_PRE);
+    }
+
+    /**
+     * Adds a search engine, after those already registered
+     * @param urlPrefix The start of every search url, to which the query is appended
+     * @return The new provider, which may be passed to unregister
+     */
+    public static Provider register(String urlPrefix) {
+        final Provider provider = new Provider(urlPrefix);
+        providers.add(provider);
+        version.incrementAndGet();
+        return provider;
+    }
+
+    /** Removes a search engine, so it's no longer shown in search results */
+    public static void unregister(Provider provider) {
+        if (providers.remove(provider)) version.incrementAndGet();
+    }
+
+    /** @return Every registered search engine, in the order they should be shown */
+    public static List<Provider> getAll() {
+        return Collections.unmodifiableList(providers);
+    }
+
+    /** @return A number which changes whenever a provider is registered or unregistered */
+    public static int getVersion() {
+        return version.get();
+    }
+
+    /** @return True if the url is a search from any registered search engine */
+    public static boolean isSearchUrl(String url) {
+        if (StringLib.isSearchUrl(url)) return true;
+        for (Provider provider : providers) if (url.startsWith(provider.urlPrefix)) return true;
+        return false;
+    }
+}
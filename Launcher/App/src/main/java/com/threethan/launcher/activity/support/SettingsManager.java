@@ -20,6 +20,7 @@ import com.threethan.launchercore.util.App;
 import com.threethan.launchercore.util.Platform;
 
 import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -61,6 +62,7 @@ public class SettingsManager extends Settings {
     private static DataStoreEditor dataStoreEditorSort = null;
     private final WeakReference<LauncherActivity> myLauncherActivityRef;
     private static ConcurrentHashMap<String, String> appGroupMap = new ConcurrentHashMap<>();
+    private static volatile int appLaunchCount = 0;
     private static Set<String> appGroupsSet = Collections.synchronizedSet(new HashSet<>());
     private Set<String> selectedGroupsSet = Collections.synchronizedSet(new HashSet<>());
     private static final Map<Context, SettingsManager> instanceByContext = Collections.synchronizedMap(new HashMap<>());
@@ -82,17 +84,13 @@ public class SettingsManager extends Settings {
         return instanceByContext.get(context);
     }
 
-    public static HashMap<ApplicationInfo, String> appLabelCache = new HashMap<>();
-
     /**
      * Gets the label for the given app.
-     * Returns the package name if it hasn't been cached yet, but then gets it asynchronously.
+     * If the app has no custom label, its label from metadata is also fetched asynchronously.
      */
     public static String getAppLabel(ApplicationInfo app) {
-        if (appLabelCache.containsKey(app)) return appLabelCache.get(app);
-        final String customLabel = dataStoreEditor.getString(app.packageName, "");
-        if (customLabel.isEmpty()) fetchLabelAsync(app, l -> {});
-        return processAppLabel(app, customLabel);
+        final LabelIndex.Entry entry = getLabelEntry(app);
+        return entry == null ? null : entry.label;
     }
     /**
      * Gets the label for the given app.
@@ -100,35 +98,59 @@ public class SettingsManager extends Settings {
      * @param onLabel Called when the label is ready, may be called more than once!
      */
     public static void getAppLabel(ApplicationInfo app, Consumer<String> onLabel) {
-        if (appLabelCache.containsKey(app)) onLabel.accept(appLabelCache.get(app));
+        final LabelIndex.Entry entry = getLabelEntry(app);
+        if (entry != null) onLabel.accept(entry.label);
+        if (entry == null || !entry.custom) fetchLabelAsync(app, onLabel);
+    }
+
+    /**
+     * Gets the indexed label for the given app, indexing it first if needed.
+     * Only the first lookup of each package reads the DataStore or PackageManager.
+     */
+    private static @Nullable LabelIndex.Entry getLabelEntry(ApplicationInfo app) {
+        final LabelIndex.Entry entry = LabelIndex.get(app.packageName);
+        if (entry != null) return entry;
+        // Search urls change with every query, so aren't worth indexing
+        if (SearchProviders.isSearchUrl(app.packageName)) {
+            final String label = processAppLabel(app, "");
+            return label == null ? null : new LabelIndex.Entry(label, false);
+        }
         final String customLabel = dataStoreEditor.getString(app.packageName, "");
-        onLabel.accept(processAppLabel(app, customLabel));
-        if (customLabel.isEmpty()) fetchLabelAsync(app, onLabel);
+        if (customLabel.isEmpty()) fetchLabelAsync(app, l -> {});
+        final String label = processAppLabel(app, customLabel);
+        if (label == null) return null;
+        return LabelIndex.put(app.packageName, label, !customLabel.isEmpty());
     }
 
     /**
      * Asynchronously fetches the app label from metadata repo
      * @param app ApplicationInfo of the app
-     * @param onLabel Called on success with the label
+     * @param onLabel Called on the UI thread on success with the label
      */
     private static void fetchLabelAsync(ApplicationInfo app, Consumer<String> onLabel) {
         if (Platform.labelOverrides.containsKey(app.packageName)) return;
-        new Thread(() -> {
-            MetaMetadata.App appMeta = MetaMetadata.getForPackage(app.packageName);
-            if (appMeta != null) {
-                String label = appMeta.label();
-                appLabelCache.put(app, label);
-                dataStoreEditor.putString(app.packageName+META_LABEL_SUFFIX, label);
-                onLabel.accept(label);
-            }
-        }).start();
+        LabelResolver.resolve(app.packageName, onLabel);
+    }
+    /** Stores a label fetched by the LabelResolver, so it's available without the network */
+    static void storeMetaLabel(String packageName, String label) {
+        LabelIndex.putIfNotCustom(packageName, label);
+        dataStoreEditor.putString(packageName+META_LABEL_SUFFIX, label);
     }
 
     /**
      * Gets the string which should be used to sort the given app
      */
     public static String getSortableAppLabel(ApplicationInfo app) {
-        return  (App.isBanner(app) ? "0" : "1") + StringLib.forSort(getAppLabel(app));
+        final LabelIndex.Entry entry = getLabelEntry(app);
+        return  (App.isBanner(app) ? "0" : "1") + (entry == null ? "" : entry.sortKey);
+    }
+    /**
+     * Gets the string which should be matched against search queries for the given app,
+     * as processed by {@link StringLib#forSearch}
+     */
+    public static String getSearchableAppLabel(ApplicationInfo app) {
+        final LabelIndex.Entry entry = getLabelEntry(app);
+        return entry == null ? "" : entry.searchKey;
     }
 
     private static @Nullable String processAppLabel(ApplicationInfo app, String name) {
@@ -136,7 +158,7 @@ public class SettingsManager extends Settings {
 
         if (Platform.labelOverrides.containsKey(app.packageName))
             return Platform.labelOverrides.get(app.packageName);
-        if (App.isWebsite(app.packageName) || StringLib.isSearchUrl(app.packageName)) {
+        if (App.isWebsite(app.packageName) || SearchProviders.isSearchUrl(app.packageName)) {
             try {
                 name = app.packageName.split("//")[1];
                 String[] split = name.split("\\.");
@@ -144,7 +166,7 @@ public class SettingsManager extends Settings {
                 else if (split.length == 2) name = split[0];
                 else name = split[1];
 
-                if (StringLib.isSearchUrl(app.packageName))
+                if (SearchProviders.isSearchUrl(app.packageName))
                     name += " Search";
 
                 if (!name.isEmpty()) return StringLib.toTitleCase(name);
@@ -166,7 +188,7 @@ public class SettingsManager extends Settings {
 
     public static void setAppLabel(ApplicationInfo app, String newName) {
         if (newName == null) return;
-        appLabelCache.put(app, newName);
+        LabelIndex.put(app.packageName, newName, true);
         dataStoreEditor.putString(app.packageName, newName);
         if (LauncherActivity.getForegroundInstance() != null)
             LauncherActivity.getForegroundInstance().launcherService
@@ -186,6 +208,25 @@ public class SettingsManager extends Settings {
         }
         return App.getType(pkg) != App.Type.PANEL;
     }
+    /**
+     * Records that an app was just launched, so it can be ranked higher in searches
+     * @param pkg Package name of the app
+     */
+    public static void setAppLaunchTime(String pkg) {
+        Compat.getDataStore().putLong(Settings.KEY_LAUNCH_TIME + pkg, System.currentTimeMillis());
+        appLaunchCount++;
+    }
+    /** @return When the app was last launched, or 0 if it never was */
+    public static long getAppLaunchTime(String pkg) {
+        return Compat.getDataStore().getLong(Settings.KEY_LAUNCH_TIME + pkg, 0);
+    }
+    /**
+     * @return The number of launches recorded since the process started,
+     * so indexes built from launch times can tell when they're out of date
+     */
+    public static int getAppLaunchCount() {
+        return appLaunchCount;
+    }
     public static int getAppLaunchSize(String pkg) {
         int val = Compat.getDataStore().getInt(
                 Settings.KEY_LAUNCH_SIZE + pkg, 0);
@@ -225,17 +266,20 @@ public class SettingsManager extends Settings {
         }
 
         // Sort into groups
+        boolean changed = false;
         for (ApplicationInfo app : new ArrayList<>(allApps)) {
-            if (App.getType(app) == App.Type.UNSUPPORTED)
-                apps.put(app.packageName, Settings.UNSUPPORTED_GROUP);
-            else if (!apps.containsKey(app.packageName) ||
+            if (App.getType(app) == App.Type.UNSUPPORTED) {
+                if (!Settings.UNSUPPORTED_GROUP.equals(
+                        apps.put(app.packageName, Settings.UNSUPPORTED_GROUP))) changed = true;
+            } else if (!apps.containsKey(app.packageName) ||
                     Objects.equals(apps.get(app.packageName), Settings.UNSUPPORTED_GROUP)){
                 apps.put(app.packageName, AppExt.getDefaultGroupFor(AppExt.getType(app)));
+                changed = true;
             }
         }
 
-        // Save changes to app list
-        setAppGroupMap(apps);
+        // Save changes to app list, if there were any
+        lastRefreshBytesWritten = changed ? writeGroupsAndSort() : 0;
 
         List<ApplicationInfo> currentApps = new ArrayList<>(allApps);
         currentApps.removeIf(app
@@ -352,19 +396,21 @@ public class SettingsManager extends Settings {
      * Resets all groups and sorting
      */
     public void resetGroupsAndSort(){
-        dataStoreEditorSort.asyncWrite = false;
-        for (String group : appGroupsSet)
-            dataStoreEditorSort.removeStringSet(KEY_GROUP_APP_LIST + group);
-        appGroupsSet.clear();
-        appGroupMap.clear();
-        dataStoreEditorSort.removeStringSet(KEY_GROUPS);
-        dataStoreEditor.removeStringSet(KEY_SELECTED_GROUPS);
-        for (String group : getAppGroups())
-            dataStoreEditorSort.removeStringSet(group);
+        // Written together in a single transaction
+        final DataStoreEditor editor = dataStoreEditorSort.edit();
         try {
-            Thread.sleep(500);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+            for (String group : appGroupsSet)
+                editor.removeStringSet(KEY_GROUP_APP_LIST + group);
+            appGroupsSet.clear();
+            appGroupMap.clear();
+            editor.removeStringSet(KEY_GROUPS);
+            dataStoreEditor.removeStringSet(KEY_SELECTED_GROUPS);
+            for (String group : getAppGroups())
+                editor.removeStringSet(group);
+        } catch (Exception e) {
+            Log.e("Settings Manager", "Error while resetting groups & sort", e);
+        } finally {
+            editor.commit();
         }
         readGroupsAndSort();
         writeGroupsAndSort();
@@ -382,8 +428,10 @@ public class SettingsManager extends Settings {
         try {
             appGroupsSet.clear();
             appGroupsSet.addAll(dataStoreEditorSort.getStringSet(KEY_GROUPS, getDefaultGroupsSet()));
+            persistedGroups = new HashSet<>(appGroupsSet);
 
             appGroupMap.clear();
+            persistedAppLists.clear();
 
             appGroupsSet.add(Settings.HIDDEN_GROUP);
             appGroupsSet.add(Settings.UNSUPPORTED_GROUP);
@@ -391,6 +439,7 @@ public class SettingsManager extends Settings {
                 Set<String> appListSet = new HashSet<>();
                 appListSet = dataStoreEditorSort.getStringSet(KEY_GROUP_APP_LIST + group, appListSet);
                 for (String app : appListSet) appGroupMap.put(app, group);
+                persistedAppLists.put(group, appListSet);
             }
 
         } catch (Exception e) {
@@ -402,13 +451,29 @@ public class SettingsManager extends Settings {
         writeGroupsAndSort();
     }
 
+    // The set of groups and each group's apps as last read or written, so that only groups
+    // which changed since are written again
+    private static Set<String> persistedGroups = new HashSet<>();
+    private static final Map<String, Set<String>> persistedAppLists = new HashMap<>();
+    private static volatile long lastRefreshBytesWritten = 0;
+
     /**
-     * Writes the current sorting of apps and set of groups to the dataStore
+     * Writes the current sorting of apps and set of groups to the dataStore.
+     * Only the set of groups and the app lists of groups which changed since they were last
+     * read or written are written.
+     * @return Approximate number of bytes written, which is 0 if nothing changed
      */
-    public synchronized static void writeGroupsAndSort() {
+    public synchronized static long writeGroupsAndSort() {
+        long bytesWritten = 0;
+        // Written together in a single transaction
+        final DataStoreEditor editor = dataStoreEditorSort.edit();
         try {
-            DataStoreEditor editor = dataStoreEditorSort;
-            editor.putStringSet(KEY_GROUPS, appGroupsSet);
+            if (!appGroupsSet.equals(persistedGroups)) {
+                final Set<String> groups = new HashSet<>(appGroupsSet);
+                editor.putStringSet(KEY_GROUPS, groups);
+                persistedGroups = groups;
+                bytesWritten += sizeOf(groups);
+            }
 
             Map<String, Set<String>> appListSetMap = new HashMap<>();
             for (String group : appGroupsSet) appListSetMap.put(group, new HashSet<>());
@@ -425,11 +490,33 @@ public class SettingsManager extends Settings {
                 group.add(pkg);
             }
             for (String group : appGroupsSet) {
-                editor.putStringSet(KEY_GROUP_APP_LIST + group, appListSetMap.get(group));
+                final Set<String> appListSet = appListSetMap.get(group);
+                if (Objects.equals(appListSet, persistedAppLists.get(group))) continue;
+                editor.putStringSet(KEY_GROUP_APP_LIST + group, appListSet);
+                persistedAppLists.put(group, appListSet);
+                bytesWritten += sizeOf(appListSet);
             }
         } catch (Exception e) {
             Log.e("Settings Manager", "Error while writing groups & sort", e);
+        } finally {
+            editor.apply();
         }
+        return bytesWritten;
+    }
+    /** @return Approximate encoded size of a string set */
+    private static long sizeOf(@Nullable Set<String> set) {
+        if (set == null) return 0;
+        long size = 0;
+        // Each string is written as its UTF-8 bytes, with a few bytes of framing
+        for (String string : set) size += string.getBytes(StandardCharsets.UTF_8).length + 2;
+        return size;
+    }
+    /**
+     * @return Approximate number of bytes of group data written by the last call to
+     * getVisibleApps, which should be 0 unless apps were added or moved to another group
+     */
+    public static long getLastRefreshBytesWritten() {
+        return lastRefreshBytesWritten;
     }
 
     /**
@@ -72,6 +72,7 @@ public abstract class Settings {
     public static final String KEY_AUTO_HIDE_EMPTY = "KEY_AUTO_HIDE_EMPTY";
     public static final String KEY_SEARCH_WEB = "KEY_SEARCH_WEB";
     public static final String KEY_SEARCH_HIDDEN = "KEY_SEARCH_HIDDEN";
+    public static final String KEY_SEARCH_RANKED = "KEY_SEARCH_RANKED";
     public static final int DEFAULT_BACKGROUND_VR = 0;
     public static final int DEFAULT_BACKGROUND_TV = 9;
     public static final int DEFAULT_ALPHA = 255;
@@ -81,6 +82,7 @@ public abstract class Settings {
     public static final boolean DEFAULT_AUTO_HIDE_EMPTY = true;
     public static final boolean DEFAULT_SEARCH_WEB = true;
     public static final boolean DEFAULT_SEARCH_HIDDEN = true;
+    public static final boolean DEFAULT_SEARCH_RANKED = true;
     public static final String CUSTOM_BACKGROUND_PATH = "background.png";
 
     // Basic UI keys
@@ -124,6 +126,7 @@ public abstract class Settings {
     public static final String KEY_SELECTED_GROUPS = "prefSelectedGroups";
     public static final String KEY_WEBSITE_LIST = "prefWebAppNames";
     public static final String KEY_LAUNCH_SIZE = "prefLaunchSize";
+    public static final String KEY_LAUNCH_TIME = "prefLaunchTime";
     public static final String KEY_LAUNCH_BROWSER = "prefLaunchBrowser";
     public static final String KEY_DEFAULT_BROWSER = "KEY_DEFAULT_BROWSER";
 
@@ -12,6 +12,8 @@ import com.threethan.launcher.activity.LauncherActivity;
 import com.threethan.launcher.activity.adapter.LauncherAppsAdapter;
 import com.threethan.launcher.activity.dialog.BasicDialog;
 import com.threethan.launcher.activity.support.DataStoreEditor;
+import com.threethan.launcher.activity.support.LabelIndex;
+import com.threethan.launcher.activity.support.LabelResolver;
 import com.threethan.launcher.activity.support.SettingsManager;
 import com.threethan.launcher.data.Settings;
 import com.threethan.launchercore.Core;
@@ -226,10 +228,11 @@ public abstract class Compat {
     // Clears all icons, except for custom icons, and sets them to be re-downloaded
     public static void clearIconCache(LauncherActivity launcherActivity) {
         Log.i(TAG, "Icon cache is being cleared");
+        IconLoader.getIconPack().clear();
         FileLib.delete(launcherActivity.getApplicationInfo().dataDir + IconLoader.ICON_CACHE_FOLDER);
 
-        IconLoader.cachedIcons.clear();
-        IconUpdater.nextCheckByPackageMs.clear();
+        IconLoader.cachedIcons.evictAll();
+        IconUpdater.getFetchStore().clear();
 
         launcherActivity.launcherService.forEachActivity(a -> {
             if (a.getAppAdapter() != null) a.getAppAdapter().notifyAllChanged();
@@ -238,7 +241,8 @@ public abstract class Compat {
     // Clears any custom labels assigned to apps, including whether they've been starred
     public static void clearLabels(LauncherActivity launcherActivity) {
         Log.i(TAG, "Labels are being cleared");
-        SettingsManager.appLabelCache.clear();
+        LabelIndex.clear();
+        LabelResolver.clear();
         for (String packageName : launcherActivity.getAllPackages()) {
             launcherActivity.dataStoreEditor.removeString(packageName);
             launcherActivity.dataStoreEditor.removeString(packageName+META_LABEL_SUFFIX);
@@ -291,8 +295,8 @@ public abstract class Compat {
     }
 
     public static void resetIcon(ApplicationInfo app, Consumer<Drawable> callback) {
-        IconLoader.cachedIcons.remove(app.packageName);
-        IconUpdater.nextCheckByPackageMs.remove(app.packageName);
+        IconLoader.cachedIcons.remove(IconLoader.cacheName(app));
+        IconUpdater.resetFetchState(app);
 
         File cFile = IconLoader.iconCustomFileForApp(app);
         if (cFile.exists()) //noinspection ResultOfMethodCallIgnored
@@ -15,6 +15,7 @@ import com.threethan.launcher.R;
 import com.threethan.launcher.activity.AddShortcutActivity;
 import com.threethan.launcher.activity.LauncherActivity;
 import com.threethan.launcher.activity.dialog.BasicDialog;
+import com.threethan.launcher.activity.support.SearchProviders;
 import com.threethan.launcher.activity.support.SettingsManager;
 import com.threethan.launcher.data.Settings;
 import com.threethan.launcher.updater.BrowserUpdater;
@@ -94,6 +95,9 @@ public abstract class LaunchExt extends Launch {
             }
         }
 
+        if (!SearchProviders.isSearchUrl(app.packageName))
+            SettingsManager.setAppLaunchTime(app.packageName);
+
         // Apply tuning via Quest Game Tuner (no effect unless Quest Game Tuner >= 1.5 is installed)
         QuestGameTuner.applyTuning(app.packageName);
 
@@ -2,6 +2,8 @@ package com.threethan.launchercore.adapter;
 
 import android.annotation.SuppressLint;
 
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import java.util.ArrayList;
@@ -10,6 +12,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 /**
  * An extension of {@link RecyclerView} which provides functions for using and manipulating
@@ -71,6 +74,88 @@ public abstract class ArrayListAdapter<T, VH extends RecyclerView.ViewHolder> ex
         }
     }
 
+    /**
+     * Changes to the item list, computed ahead of time by {@link #diffItems(List)}
+     * @param <T> The type of object used as an item in the list
+     */
+    public static class ItemsDiff<T> {
+        private final List<T> oldItems;
+        private final List<T> newItems;
+        private final DiffUtil.DiffResult result;
+        @Nullable private final Runnable onApply;
+        private ItemsDiff(List<T> oldItems, List<T> newItems, DiffUtil.DiffResult result,
+                          @Nullable Runnable onApply) {
+            this.oldItems = oldItems;
+            this.newItems = newItems;
+            this.result = result;
+            this.onApply = onApply;
+        }
+    }
+
+    /**
+     * Computes the additions, removals and moves needed to show a new list of items,
+     * without changing the adapter, so it may be called from a background thread
+     * <p>
+     * Items are compared the same way as by setItems, and are assumed not to have changed
+     * @param newItems the new list of items
+     * @return Changes to pass to {@link #applyItems(ItemsDiff)} on the UI thread
+     */
+    public ItemsDiff<T> diffItems(List<T> newItems) {
+        return diffItems(newItems, null);
+    }
+
+    /**
+     * Computes the changes needed to show a new list of items, as {@link #diffItems(List)},
+     * along with changes to the items themselves which must wait until they're applied
+     * @param newItems the new list of items
+     * @param onApply Run on the UI thread by {@link #applyItems(ItemsDiff)}, before the new items
+     *                are shown, to change any items which may currently be shown
+     * @return Changes to pass to {@link #applyItems(ItemsDiff)} on the UI thread
+     */
+    public ItemsDiff<T> diffItems(List<T> newItems, @Nullable Runnable onApply) {
+        final List<T> oldItems;
+        synchronized (items) {
+            oldItems = new ArrayList<>(items);
+        }
+        final DiffUtil.DiffResult result = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldItems.size();
+            }
+            @Override
+            public int getNewListSize() {
+                return newItems.size();
+            }
+            @Override
+            public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                return Objects.equals(oldItems.get(oldPosition), newItems.get(newPosition));
+            }
+            @Override
+            public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                return true;
+            }
+        });
+        return new ItemsDiff<>(oldItems, newItems, result, onApply);
+    }
+
+    /**
+     * Sets the content of the item list to that of a diff from {@link #diffItems(List)},
+     * while notifying additions and removals for animations.
+     * <p>
+     * If the items changed since the diff was computed, falls back to setItems
+     * @param diff Changes to apply
+     */
+    public void applyItems(ItemsDiff<T> diff) {
+        if (diff.onApply != null) diff.onApply.run();
+        if (!items.equals(diff.oldItems)) {
+            setItems(diff.newItems);
+            return;
+        }
+        items.clear();
+        items.addAll(diff.newItems);
+        diff.result.dispatchUpdatesTo(this);
+    }
+
     /**
      * Returns the total number of items in the data list.
      * @return The total number of items in this adapter.
@@ -0,0 +1,146 @@
+package com.threethan.launchercore.lib;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A pool of mutable bitmaps which are no longer used, so that decoding or scaling
+ * a new bitmap can reuse their memory (through {@link android.graphics.BitmapFactory.Options#inBitmap})
+ * instead of allocating another one.
+ * <p>
+ * Bitmaps are bucketed by config and allocation size. A request is served from the smallest
+ * bucket which is large enough, but no more than twice as large, to avoid wasting memory.
+ * <p>
+ * Bitmaps put in the pool must not be used or displayed anywhere else afterwards.
+ */
+public class BitmapPool {
+    // Sizes are rounded up to a multiple of this, so similar sizes share a bucket
+    private static final int BUCKET_BYTES = 4 * 1024;
+    // A pooled bitmap may be at most this many times larger than requested
+    private static final int MAX_OVERSIZE = 2;
+
+    private final Map<Bitmap.Config, TreeMap<Integer, ArrayDeque<Bitmap>>> buckets
+            = new EnumMap<>(Bitmap.Config.class);
+    private long maxBytes;
+    private long bytesHeld = 0;
+    private int hitCount = 0;
+    private int missCount = 0;
+
+    /** @param maxBytes Maximum total allocation size of bitmaps held by the pool */
+    public BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Takes a bitmap out of the pool
+     * @param byteCount Minimum allocation size needed
+     * @param config Config of the bitmap
+     * @return A mutable bitmap with at least the given allocation size, or null if there's none
+     */
+    @Nullable
+    public synchronized Bitmap get(int byteCount, @NonNull Bitmap.Config config) {
+        final TreeMap<Integer, ArrayDeque<Bitmap>> sizes = buckets.get(config);
+        final Map.Entry<Integer, ArrayDeque<Bitmap>> bucket
+                = sizes == null ? null : sizes.ceilingEntry(bucketFor(byteCount));
+        if (bucket == null || bucket.getKey() > (long) bucketFor(byteCount) * MAX_OVERSIZE) {
+            missCount++;
+            return null;
+        }
+        final Bitmap bitmap = bucket.getValue().pollLast();
+        if (bucket.getValue().isEmpty()) sizes.remove(bucket.getKey());
+        if (bitmap == null) {
+            missCount++;
+            return null;
+        }
+        bytesHeld -= bitmap.getAllocationByteCount();
+        hitCount++;
+        return bitmap;
+    }
+
+    /**
+     * Puts a bitmap in the pool, if it can be reused
+     * @param bitmap A bitmap which is no longer used anywhere
+     */
+    public synchronized void put(@Nullable Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() == null) return;
+        final int byteCount = bitmap.getAllocationByteCount();
+        if (byteCount > maxBytes / 2) return;
+        //noinspection DataFlowIssue
+        buckets.computeIfAbsent(bitmap.getConfig(), c -> new TreeMap<>())
+                .computeIfAbsent(bucketFor(byteCount), s -> new ArrayDeque<>())
+                .addLast(bitmap);
+        bytesHeld += byteCount;
+        trimToSize(maxBytes);
+    }
+
+    /**
+     * Drops bitmaps from the pool, largest first, until it holds no more than a number of bytes
+     * @param size Maximum number of bytes to hold
+     */
+    public synchronized void trimToSize(long size) {
+        while (bytesHeld > size) {
+            Map.Entry<Integer, ArrayDeque<Bitmap>> largest = null;
+            TreeMap<Integer, ArrayDeque<Bitmap>> largestSizes = null;
+            for (TreeMap<Integer, ArrayDeque<Bitmap>> sizes : buckets.values()) {
+                final Map.Entry<Integer, ArrayDeque<Bitmap>> entry = sizes.lastEntry();
+                if (entry != null && (largest == null || entry.getKey() > largest.getKey())) {
+                    largest = entry;
+                    largestSizes = sizes;
+                }
+            }
+            if (largest == null) {
+                bytesHeld = 0;
+                return;
+            }
+            final Bitmap bitmap = largest.getValue().pollFirst();
+            if (largest.getValue().isEmpty()) largestSizes.remove(largest.getKey());
+            if (bitmap != null) bytesHeld -= bitmap.getAllocationByteCount();
+        }
+    }
+
+    /** Drops every bitmap from the pool */
+    public void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * Sets the maximum total allocation size of bitmaps held by the pool,
+     * dropping bitmaps if the pool is now over that size
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    /** @return The number of times a bitmap was reused from the pool */
+    public synchronized int hitCount() {
+        return hitCount;
+    }
+    /** @return The number of times there was no suitable bitmap to reuse */
+    public synchronized int missCount() {
+        return missCount;
+    }
+    /** @return The total allocation size of bitmaps currently in the pool */
+    public synchronized long bytesHeld() {
+        return bytesHeld;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool[hits=" + hitCount + ",misses=" + missCount
+                + ",bytesHeld=" + bytesHeld + ",maxBytes=" + maxBytes + "]";
+    }
+
+    private static int bucketFor(int byteCount) {
+        return (byteCount + BUCKET_BYTES - 1) / BUCKET_BYTES * BUCKET_BYTES;
+    }
+}
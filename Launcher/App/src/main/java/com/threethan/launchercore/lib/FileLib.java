@@ -1,5 +1,6 @@
 package com.threethan.launchercore.lib;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -42,4 +43,40 @@ public class FileLib {
             return false;
         }
     }
+
+    /**
+     * Reads the remainder of a stream into memory
+     * (InputStream.readAllBytes requires a higher API)
+     * @return All bytes read from the stream
+     */
+    public static byte[] readBytes(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int len;
+        while ((len = in.read(buf)) != -1) out.write(buf, 0, len);
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes data to a temporary file, then renames it over the destination,
+     * so that a partially written destination file is never left behind
+     * @param file Destination file
+     * @param data Data to write
+     */
+    public static void writeAtomic(File file, byte[] data) throws IOException {
+        //noinspection ResultOfMethodCallIgnored
+        Objects.requireNonNull(file.getParentFile()).mkdirs();
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmpFile, false)) {
+            out.write(data);
+            out.getFD().sync();
+        } catch (IOException e) {
+            delete(tmpFile);
+            throw e;
+        }
+        if (!tmpFile.renameTo(file)) {
+            delete(tmpFile);
+            throw new IOException("Failed to rename " + tmpFile + " to " + file);
+        }
+    }
 }
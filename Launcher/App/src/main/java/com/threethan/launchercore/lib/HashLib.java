@@ -0,0 +1,60 @@
+package com.threethan.launchercore.lib;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Fast, non-cryptographic 64-bit hashes, used to fingerprint image data
+ * so that images can be compared without comparing their pixels.
+ * @noinspection unused
+ */
+public class HashLib {
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+    private static final long MULTIPLIER = 0xBF58476D1CE4E5B9L;
+
+    /**
+     * Hashes the remaining bytes of a buffer, without changing its position
+     * @param buffer Buffer to hash
+     * @return A 64-bit fingerprint, which is never 0
+     */
+    public static long fingerprint(ByteBuffer buffer) {
+        final ByteBuffer data = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        long hash = SEED ^ data.remaining();
+        // Hash 8 bytes at a time, then any remaining bytes individually
+        while (data.remaining() >= 8) hash = step(hash, data.getLong());
+        while (data.hasRemaining()) hash = step(hash, data.get() & 0xFF);
+        return nonZero(mix(hash));
+    }
+    /**
+     * Hashes an array of bytes
+     * @param bytes Bytes to hash
+     * @return A 64-bit fingerprint, which is never 0
+     */
+    public static long fingerprint(byte[] bytes) {
+        return fingerprint(ByteBuffer.wrap(bytes));
+    }
+    /**
+     * Hashes a set of values, such as the properties which identify a file's contents
+     * @param values Values to hash
+     * @return A 64-bit fingerprint, which is never 0
+     */
+    public static long fingerprint(long... values) {
+        long hash = SEED ^ values.length;
+        for (long value : values) hash = step(hash, value);
+        return nonZero(mix(hash));
+    }
+
+    private static long step(long hash, long value) {
+        return Long.rotateLeft(hash ^ mix(value), 27) * MULTIPLIER;
+    }
+    /** Spreads the bits of a value (the finalizer from SplitMix64) */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * MULTIPLIER;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+    /** 0 is used to mean an unknown fingerprint */
+    private static long nonZero(long hash) {
+        return hash == 0 ? 1 : hash;
+    }
+}
@@ -3,15 +3,21 @@ package com.threethan.launchercore.lib;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 
 import androidx.annotation.Nullable;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Objects;
 
 /** @noinspection unused*/
@@ -59,41 +65,230 @@ public class ImageLib {
         return BitmapFactory.decodeFile(file.getPath());
     }
 
+    /**
+     * Decodes an image file, downsampled so that its height is no larger than needed.
+     * Uses memory-efficient configs (such as RGB_565) where alpha isn't needed.
+     * @param file File to decode
+     * @param targetHeight Height, in pixels, at which the image will be displayed
+     * @return The bitmap, or null if the file could not be decoded
+     */
     @Nullable
-    public static Bitmap bitmapFromStream(InputStream stream) {
-        final Bitmap bitmap = BitmapFactory.decodeStream(stream);
-        try { stream.close(); } catch (IOException ignored) {}
+    public static Bitmap bitmapFromFile(File file, int targetHeight) {
+        return bitmapFromFile(file, targetHeight, null);
+    }
+    /**
+     * Decodes an image file, downsampled so that its height is no larger than needed.
+     * Uses memory-efficient configs (such as RGB_565) where alpha isn't needed.
+     * @param file File to decode
+     * @param targetHeight Height, in pixels, at which the image will be displayed
+     * @param pool Pool from which to reuse a bitmap, or null to always allocate one
+     * @return The bitmap, or null if the file could not be decoded
+     */
+    @Nullable
+    public static Bitmap bitmapFromFile(File file, int targetHeight, @Nullable BitmapPool pool) {
+        return decodeSampled(options -> BitmapFactory.decodeFile(file.getPath(), options),
+                isOpaqueWebp(file), targetHeight, pool);
+    }
+
+    /**
+     * Decodes an encoded image held in a buffer (such as a memory-mapped file),
+     * downsampled so that its height is no larger than needed.
+     * Uses memory-efficient configs (such as RGB_565) where alpha isn't needed.
+     * @param buffer Buffer containing only the encoded image
+     * @param targetHeight Height, in pixels, at which the image will be displayed
+     * @return The bitmap, or null if the buffer could not be decoded
+     */
+    @Nullable
+    public static Bitmap bitmapFromBuffer(ByteBuffer buffer, int targetHeight) {
+        return bitmapFromBuffer(buffer, targetHeight, null);
+    }
+    /**
+     * Decodes an encoded image held in a buffer (such as a memory-mapped file),
+     * downsampled so that its height is no larger than needed.
+     * Uses memory-efficient configs (such as RGB_565) where alpha isn't needed.
+     * @param buffer Buffer containing only the encoded image
+     * @param targetHeight Height, in pixels, at which the image will be displayed
+     * @param pool Pool from which to reuse a bitmap, or null to always allocate one
+     * @return The bitmap, or null if the buffer could not be decoded
+     */
+    @Nullable
+    public static Bitmap bitmapFromBuffer(ByteBuffer buffer, int targetHeight,
+                                          @Nullable BitmapPool pool) {
+        final byte[] header = new byte[Math.min(21, buffer.remaining())];
+        buffer.duplicate().get(header);
+        return decodeSampled(options -> BitmapFactory.decodeStream(
+                new ByteBufferInputStream(buffer.duplicate()), null, options),
+                isOpaqueWebp(header), targetHeight, pool);
+    }
+
+    /**
+     * Decodes encoded image data straight to a given height, without ever holding it at
+     * full size. Large images are subsampled while decoding, and the decoder scales
+     * the rest of the way.
+     * <p>
+     * The result should only be used temporarily (such as to re-encode it),
+     * then put back in the pool so the next decode may reuse it.
+     * @param data Encoded image data
+     * @param height Height of the resulting bitmap
+     * @param pool Pool from which to reuse a bitmap, or null to always allocate one
+     * @return A mutable ARGB_8888 bitmap, or null if the data could not be decoded
+     */
+    @Nullable
+    public static Bitmap decodeScratch(byte[] data, int height, @Nullable BitmapPool pool) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outHeight <= 0 || options.outWidth <= 0) return null;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSizeFor(options.outHeight, height);
+        // Density scaling lets the decoder scale from the sampled height to the exact height
+        options.inScaled = true;
+        options.inDensity = Math.max(1, options.outHeight / options.inSampleSize);
+        options.inTargetDensity = height;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        return decodeInto(o -> BitmapFactory.decodeByteArray(data, 0, data.length, o),
+                options, Math.max(1, options.outWidth * height / options.outHeight), height, pool);
+    }
+
+    /**
+     * Scales a bitmap to a given height, drawing into a pooled bitmap if one is available.
+     * The original bitmap is returned as-is if it's already that height.
+     * @param pool Pool from which to reuse a bitmap, or null to always allocate one
+     * @return The scaled bitmap, which is mutable if it's not the original
+     */
+    public static Bitmap getResizedBitmap(Bitmap originalBitmap, int maxHeight,
+                                          @Nullable BitmapPool pool) {
+        if (originalBitmap.getHeight() == maxHeight) return originalBitmap;
+        final int width = Math.max(1, originalBitmap.getWidth() * maxHeight
+                / originalBitmap.getHeight());
+        Bitmap bitmap = pool == null ? null
+                : pool.get(width * maxHeight * 4, Bitmap.Config.ARGB_8888);
+        if (bitmap != null) {
+            bitmap.reconfigure(width, maxHeight, Bitmap.Config.ARGB_8888);
+            bitmap.eraseColor(Color.TRANSPARENT);
+        } else bitmap = Bitmap.createBitmap(width, maxHeight, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+        canvas.drawBitmap(originalBitmap,
+                new Rect(0, 0, originalBitmap.getWidth(), originalBitmap.getHeight()),
+                new Rect(0, 0, width, maxHeight), new Paint(Paint.FILTER_BITMAP_FLAG));
+        return bitmap;
+    }
+
+    /** Decodes using the given options, which may be called twice */
+    private interface Decoder {
+        @Nullable Bitmap decode(BitmapFactory.Options options);
+    }
+
+    @Nullable
+    private static Bitmap decodeSampled(Decoder decoder, boolean opaque, int targetHeight,
+                                        @Nullable BitmapPool pool) {
+        // Read bounds first, then decode using the largest sample size that's still big enough
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decoder.decode(options);
+        if (options.outHeight <= 0 || options.outWidth <= 0) return null;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSizeFor(options.outHeight, targetHeight);
+        int height = options.outHeight / options.inSampleSize;
+        if (height > targetHeight) {
+            // Scale the rest of the way while decoding
+            options.inScaled = true;
+            options.inDensity = height;
+            options.inTargetDensity = targetHeight;
+            height = targetHeight;
+        }
+        if (opaque) options.inPreferredConfig = Bitmap.Config.RGB_565;
+        final int width = Math.max(1, options.outWidth * height / options.outHeight);
+        return decodeInto(decoder, options, width, height, pool);
+    }
+
+    /** Decodes into a pooled bitmap if one is available, falling back to a new bitmap */
+    @Nullable
+    private static Bitmap decodeInto(Decoder decoder, BitmapFactory.Options options,
+                                     int width, int height, @Nullable BitmapPool pool) {
+        options.inMutable = true;
+        final int bytesPerPixel = options.inPreferredConfig == Bitmap.Config.RGB_565 ? 2 : 4;
+        if (pool != null) options.inBitmap
+                = pool.get(width * height * bytesPerPixel, options.inPreferredConfig);
+        Bitmap bitmap;
+        try {
+            bitmap = decoder.decode(options);
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) return null;
+            // The pooled bitmap couldn't be reused for this image
+            if (pool != null) pool.put(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = decoder.decode(options);
+        }
+        if (bitmap == null && pool != null) pool.put(options.inBitmap);
+        if (bitmap != null) bitmap.setDensity(Bitmap.DENSITY_NONE);
         return bitmap;
     }
 
+    /** @return The largest power-of-two sample size which keeps the height at least target */
+    private static int sampleSizeFor(int height, int targetHeight) {
+        int sampleSize = 1;
+        while (height / (sampleSize * 2) >= targetHeight) sampleSize *= 2;
+        return sampleSize;
+    }
+
+    /** Reads a buffer without copying it, so mapped files can be decoded in place */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) return -1;
+            length = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, length);
+            return length;
+        }
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
     /**
-     * Quickly checks if two awt BufferedImages are identical.
-     * May produce false positives, but never false negatives!
-     * @param a First image
-     * @param b Second image
-     * @return True if images are probably identical
+     * Checks the header of a webp file to see if it's known to have no alpha channel
+     * @return True if the file is a webp without alpha, false if it has alpha or is unknown
      */
-    public static boolean isIdenticalFast(Bitmap a, Bitmap b) {
-        if (a == null || b == null) return false;
-        final int w = a.getWidth();
-        final int h = a.getHeight();
-        // If dimensions don't match, images are necessarily different
-        //noinspection DuplicatedCode
-        if (w != b.getWidth() || h != b.getHeight()) return false;
-        // Sample some arbitrary points on the image and check if they're identical
-        final int N_SAMPLES = 128; // Number of points to sample
-        final float ym = 6.9F; // # should be relatively aperiodic for best result
-        final float xm = 5.1F; // # should be relatively aperiodic for best result
-        final float dx = (w * xm / (N_SAMPLES+1));
-        final float dy = (h * ym / (N_SAMPLES+1));
-        // Sample N_SAMPLES points in looping diagonals across the image,
-        //  which should provide a semi-random but distributed set of samples
-        //   with which to compare the images
-        for (int i = 0; i < N_SAMPLES; i++) {
-            final int y = (int)(i * dy) % h;
-            final int x = (int) ((((int)(i * dy / h)) + dx * i) % w);
-            if (a.getPixel(x,y) != b.getPixel(x,y)) return false;
+    public static boolean isOpaqueWebp(File file) {
+        byte[] header = new byte[21];
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            if (inputStream.read(header) < header.length) return false;
+        } catch (IOException e) {
+            return false;
         }
-        return true;
+        return isOpaqueWebp(header);
+    }
+    /**
+     * Checks the header of encoded webp data to see if it's known to have no alpha channel
+     * @return True if the data is a webp without alpha, false if it has alpha or is unknown
+     */
+    public static boolean isOpaqueWebp(byte[] header) {
+        if (header.length < 21) return false;
+        if (header[0] != 'R' || header[1] != 'I' || header[2] != 'F' || header[3] != 'F'
+                || header[8] != 'W' || header[9] != 'E' || header[10] != 'B' || header[11] != 'P')
+            return false;
+        final String chunk = new String(header, 12, 4, StandardCharsets.US_ASCII);
+        return switch (chunk) {
+            case "VP8 " -> true; // Simple lossy, never has alpha
+            case "VP8X" -> (header[20] & 0x10) == 0; // Extended, has an alpha flag
+            default -> false; // Lossless, which may have alpha
+        };
+    }
+
+    @Nullable
+    public static Bitmap bitmapFromStream(InputStream stream) {
+        final Bitmap bitmap = BitmapFactory.decodeStream(stream);
+        try { stream.close(); } catch (IOException ignored) {}
+        return bitmap;
     }
 }
@@ -1,5 +1,7 @@
 package com.threethan.launchercore.lib;
 
+import java.text.Normalizer;
+import java.util.regex.Pattern;
 
 /** @noinspection unused*/
 public class StringLib {
@@ -18,6 +20,17 @@ public class StringLib {
     public static String forSort(String in) {
         return in.toLowerCase().replace(STAR, " ");
     }
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{Mn}+");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    /**
+     * Normalizes a string for searching, so that case, stars, accents and repeated spaces
+     * don't affect whether it matches
+     */
+    public static String forSearch(String in) {
+        final String decomposed = Normalizer.normalize(forSort(in), Normalizer.Form.NFD);
+        return WHITESPACE.matcher(DIACRITICS.matcher(decomposed).replaceAll("").trim())
+                .replaceAll(" ");
+    }
     public static String setStarred(String in, boolean starred) {
         in = in.trim();
         if (hasStar(in) != starred) return toggleStar(in);
@@ -0,0 +1,202 @@
+package com.threethan.launchercore.metadata;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.threethan.launchercore.Core;
+import com.threethan.launchercore.lib.BitmapPool;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A byte-budgeted LRU cache of decoded icon drawables, keyed by {@link IconLoader#cacheName}.
+ * <p>
+ * Entries are sized by the allocation size of their bitmap, and the total budget is a fraction of
+ * {@link ActivityManager#getMemoryClass()}. Since the LauncherService keeps the process alive
+ * for a very long time, this prevents every icon ever shown from being kept on the heap.
+ * <p>
+ * Hit, miss and eviction counters are provided by {@link LruCache}
+ * ({@link #hitCount()}, {@link #missCount()}, {@link #evictionCount()})
+ * <p>
+ * Bitmaps of removed icons are put in a {@link BitmapPool} to be reused by later decodes,
+ * but only once nothing else uses them. Consumers may {@link #retain} an icon while it's
+ * displayed, and must then {@link #release} it afterwards. Icons given to consumers which
+ * won't release them should be marked with {@link #markEscaped}, and are never pooled.
+ */
+public class IconCache extends LruCache<String, Drawable> {
+    /** Fraction of the app's memory class which may be used by cached icons */
+    public static final float MEMORY_FRACTION = 1/8f;
+    // Used until the core context is ready, or if the memory class can't be queried
+    private static final int FALLBACK_BUDGET_BYTES = 16 * 1024 * 1024;
+    private static final String TAG = "IconCache";
+    // Tracked separately, so residency can be checked without affecting order or counters
+    private final Set<String> residentKeys = ConcurrentHashMap.newKeySet();
+    private final BitmapPool pool;
+    // Number of users of each poolable bitmap, including the cache itself. Also used as a lock.
+    private final Map<Bitmap, Integer> users = new WeakHashMap<>();
+    // Bitmaps given to consumers which won't release them
+    private final Set<Bitmap> escaped = Collections.newSetFromMap(new WeakHashMap<>());
+
+    /** @param pool Pool to which the bitmaps of removed icons are returned */
+    public IconCache(BitmapPool pool) {
+        super(FALLBACK_BUDGET_BYTES);
+        this.pool = pool;
+    }
+
+    /**
+     * Adds an icon to the cache.
+     * Use this instead of {@link #put} so that {@link #contains} remains accurate.
+     */
+    public void putIcon(String key, Drawable icon) {
+        residentKeys.add(key);
+        retain(icon);
+        put(key, icon);
+    }
+    /**
+     * Gets an icon, and either retains it or marks it as escaped, without the chance
+     * of it being pooled in between
+     * @param key Key of the icon
+     * @param retain If true, the icon is retained and must be released by the caller,
+     *               otherwise it's marked as escaped
+     * @return The icon, or null if it's not in the cache
+     */
+    @Nullable
+    public Drawable get(String key, boolean retain) {
+        synchronized (users) {
+            final Drawable icon = get(key);
+            if (icon != null) {
+                if (retain) retain(icon);
+                else markEscaped(icon);
+            }
+            return icon;
+        }
+    }
+
+    /**
+     * Marks an icon as being used, so its bitmap won't be pooled even if removed from the cache
+     * @param icon Icon which is used, which must later be passed to {@link #release}
+     */
+    public void retain(@Nullable Drawable icon) {
+        final Bitmap bitmap = poolableBitmap(icon);
+        if (bitmap == null) return;
+        synchronized (users) {
+            final Integer count = users.get(bitmap);
+            users.put(bitmap, count == null ? 1 : count + 1);
+        }
+    }
+    /**
+     * Marks an icon as no longer used by something that previously retained it.
+     * If nothing else uses it, its bitmap is put in the pool.
+     * @param icon Icon which was passed to {@link #retain}
+     */
+    public void release(@Nullable Drawable icon) {
+        final Bitmap bitmap = poolableBitmap(icon);
+        if (bitmap == null) return;
+        synchronized (users) {
+            final Integer count = users.get(bitmap);
+            if (count != null && count > 1) {
+                users.put(bitmap, count - 1);
+                return;
+            }
+            users.remove(bitmap);
+            if (escaped.contains(bitmap)) return;
+        }
+        pool.put(bitmap);
+    }
+    /**
+     * Marks an icon as given to something which won't release it, so its bitmap is never pooled
+     * @param icon Icon which escaped
+     */
+    public void markEscaped(@Nullable Drawable icon) {
+        final Bitmap bitmap = poolableBitmap(icon);
+        if (bitmap == null) return;
+        synchronized (users) {
+            escaped.add(bitmap);
+        }
+    }
+    /** @return The pool to which the bitmaps of removed icons are returned */
+    public BitmapPool getPool() {
+        return pool;
+    }
+    /**
+     * Checks if an icon is in the cache, without counting a hit or miss
+     * or moving it to the front of the queue
+     */
+    public boolean contains(String key) {
+        return residentKeys.contains(key);
+    }
+
+    /** Recalculates the byte budget from the memory class, should be called once core is ready */
+    public synchronized void updateBudget() {
+        try {
+            ActivityManager activityManager = (ActivityManager)
+                    Core.context().getSystemService(Context.ACTIVITY_SERVICE);
+            resize((int) (activityManager.getMemoryClass() * 1024L * 1024L * MEMORY_FRACTION));
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to get memory class, using fallback budget", e);
+            resize(FALLBACK_BUDGET_BYTES);
+        }
+    }
+
+    /**
+     * Trims the cache in response to a memory warning
+     * @param level Level as passed to {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            evictAll();
+            pool.clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(maxSize() / 2);
+            pool.trimToSize(pool.bytesHeld() / 2);
+        }
+        Log.v(TAG, "Trimmed for level " + level + ", " + this + ", " + pool);
+    }
+
+    @Override
+    protected void entryRemoved(boolean evicted, @NonNull String key,
+                                @NonNull Drawable oldValue, @Nullable Drawable newValue) {
+        if (newValue == null) residentKeys.remove(key);
+        release(oldValue);
+    }
+
+    @Override
+    protected int sizeOf(@NonNull String key, @NonNull Drawable value) {
+        return sizeOfDrawable(value);
+    }
+
+    /** @return The drawable's bitmap, if it's one which may be reused once no longer used */
+    @Nullable
+    private static Bitmap poolableBitmap(@Nullable Drawable drawable) {
+        if (!(drawable instanceof BitmapDrawable bitmapDrawable)) return null;
+        final Bitmap bitmap = bitmapDrawable.getBitmap();
+        // Immutable bitmaps (such as those from resources) can't be reused
+        return bitmap != null && bitmap.isMutable() ? bitmap : null;
+    }
+
+    /** @return The approximate number of bytes used by a drawable */
+    static int sizeOfDrawable(Drawable drawable) {
+        if (drawable instanceof BitmapDrawable bitmapDrawable) {
+            Bitmap bitmap = bitmapDrawable.getBitmap();
+            if (bitmap != null) return bitmap.getAllocationByteCount();
+        }
+        // Non-bitmap drawables (vectors, adaptive icons) are estimated as ARGB_8888
+        return Math.max(1, drawable.getIntrinsicWidth())
+                * Math.max(1, drawable.getIntrinsicHeight()) * 4;
+    }
+}
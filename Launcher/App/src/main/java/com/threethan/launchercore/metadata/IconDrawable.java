@@ -0,0 +1,43 @@
+package com.threethan.launchercore.metadata;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+
+import androidx.annotation.Nullable;
+
+/**
+ * A decoded icon, which carries a fingerprint of the image it was decoded from.
+ * Two icons with the same fingerprint show the same image, so they can be compared
+ * without comparing their pixels.
+ */
+public class IconDrawable extends BitmapDrawable {
+    private final long fingerprint;
+
+    /**
+     * @param resources Resources used to set the initial density
+     * @param bitmap Decoded bitmap
+     * @param fingerprint Fingerprint of the encoded image, which must not be 0
+     */
+    public IconDrawable(Resources resources, Bitmap bitmap, long fingerprint) {
+        super(resources, bitmap);
+        this.fingerprint = fingerprint;
+    }
+
+    /** @return The fingerprint of the encoded image this was decoded from */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Checks if two icons show the same image, in constant time
+     * @return True if both are the same drawable, or are icons with the same fingerprint
+     */
+    public static boolean isSame(@Nullable Drawable a, @Nullable Drawable b) {
+        if (a == null || b == null) return false;
+        if (a == b) return true;
+        return a instanceof IconDrawable iconA && b instanceof IconDrawable iconB
+                && iconA.fingerprint == iconB.fingerprint;
+    }
+}
@@ -0,0 +1,313 @@
+package com.threethan.launchercore.metadata;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.threethan.launchercore.lib.FileLib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persistently records the outcome of icon downloads, so icons which don't exist online
+ * aren't probed for again every time the process starts.
+ * <p>
+ * Each key records when it was last attempted, the result from each source,
+ * and when it may next be attempted. Consecutive misses back off exponentially. Consecutive
+ * network errors also back off exponentially, but start sooner and are capped lower, since
+ * they say nothing about whether an icon exists.
+ * <p>
+ * Changes are written to disk in the background, coalescing bursts of changes into one write.
+ */
+public class IconFetchStore {
+    private static final String TAG = "IconFetchStore";
+    private static final int FILE_MAGIC = 0x4C4C4653; // "LLFS"
+    private static final int FILE_VERSION = 3;
+
+    // Delay before retrying after the first network error, doubled for each consecutive error
+    private static final long ERROR_BASE_DELAY_MS = 5 * 60 * 1000L;
+    private static final long ERROR_MAX_DELAY_MS = 24 * 60 * 60 * 1000L;
+    // Delay before retrying after the first miss, doubled for each consecutive miss
+    private static final long MISS_BASE_DELAY_MS = 60 * 60 * 1000L;
+    private static final long MISS_MAX_DELAY_MS = 14 * 24 * 60 * 60 * 1000L;
+    // Delay before re-downloading an icon which was found, in case it was updated
+    private static final long FOUND_DELAY_MS = 24 * 60 * 60 * 1000L;
+
+    /** A place icons are downloaded from, in the order they're tried */
+    public enum Source { PRIORITY, METADATA, FALLBACK }
+    /** The result of trying to download from a source */
+    public enum Result {
+        /** The source wasn't tried */
+        NONE,
+        /** The source has no image */
+        MISSING,
+        /** The source couldn't be reached */
+        ERROR,
+        /** A new image was downloaded from the source */
+        FOUND,
+        /** The source's image is the same as the one already cached */
+        UNCHANGED
+    }
+
+    /** The fetch history of a single key */
+    public static class State {
+        public long lastAttemptMs;
+        public long nextAttemptMs;
+        /** Number of consecutive attempts where every source was missing */
+        public int misses;
+        /** Number of consecutive attempts where nothing was found, and some source failed */
+        public int errors;
+        public final Result[] results = new Result[Source.values().length];
+        /** Url the cached image was downloaded from, which the validators below apply to */
+        @Nullable public String url;
+        /** ETag header of the cached image, if the server sent one */
+        @Nullable public String etag;
+        /** Last-Modified header of the cached image, if the server sent one */
+        @Nullable public String lastModified;
+        /** Fingerprint of the cached image's downloaded data, from HashLib */
+        public long contentHash;
+        State() {
+            Arrays.fill(results, Result.NONE);
+        }
+        /** @return The result from a source on the last attempt */
+        public Result getResult(Source source) {
+            return results[source.ordinal()];
+        }
+    }
+
+    private final File file;
+    private final Map<String, State> states = new HashMap<>();
+    private boolean loaded = false;
+    private boolean saveQueued = false;
+
+    /** @param file File in which to persist the store */
+    public IconFetchStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Checks if a key may be attempted now
+     * @param key Key of the icon
+     * @return True if the key has never been attempted, or its backoff has expired
+     */
+    public synchronized boolean shouldAttempt(String key) {
+        load();
+        final State state = states.get(key);
+        return state == null || System.currentTimeMillis() >= state.nextAttemptMs;
+    }
+
+    /**
+     * Marks a key as being attempted now, resetting its results.
+     * Also holds off further attempts until {@link #finishAttempt} sets the real backoff.
+     * @param key Key of the icon
+     */
+    public synchronized void beginAttempt(String key) {
+        load();
+        State state = states.get(key);
+        if (state == null) {
+            state = new State();
+            states.put(key, state);
+        }
+        final long now = System.currentTimeMillis();
+        state.lastAttemptMs = now;
+        state.nextAttemptMs = now + ERROR_BASE_DELAY_MS;
+        Arrays.fill(state.results, Result.NONE);
+    }
+
+    /**
+     * Records the result from a source during the current attempt.
+     * If a source is recorded more than once, the most conclusive result is kept.
+     */
+    public synchronized void recordResult(String key, Source source, Result result) {
+        final State state = states.get(key);
+        if (state == null) return;
+        final int i = source.ordinal();
+        if (result.ordinal() > state.results[i].ordinal()) state.results[i] = result;
+    }
+
+    /**
+     * Finishes the current attempt for a key, and schedules the next one
+     * @param key Key of the icon
+     */
+    public synchronized void finishAttempt(String key) {
+        final State state = states.get(key);
+        if (state == null) return;
+        boolean found = false;
+        boolean error = false;
+        for (Result result : state.results) {
+            if (result == Result.FOUND || result == Result.UNCHANGED) found = true;
+            if (result == Result.ERROR) error = true;
+        }
+        final long delay;
+        if (found) {
+            state.misses = 0;
+            state.errors = 0;
+            delay = FOUND_DELAY_MS;
+        } else if (error) {
+            state.errors++;
+            delay = backoff(ERROR_BASE_DELAY_MS, ERROR_MAX_DELAY_MS, state.errors);
+        } else {
+            state.misses++;
+            state.errors = 0;
+            delay = backoff(MISS_BASE_DELAY_MS, MISS_MAX_DELAY_MS, state.misses);
+        }
+        state.nextAttemptMs = state.lastAttemptMs + delay;
+        queueSave();
+    }
+
+    /** @return The base delay, doubled for each consecutive failure after the first */
+    private static long backoff(long baseDelayMs, long maxDelayMs, int failures) {
+        return Math.min(maxDelayMs, baseDelayMs << Math.min(failures - 1, 16));
+    }
+
+    /** @return A copy of the state for a key, or null if it was never attempted */
+    public synchronized State getState(String key) {
+        load();
+        final State state = states.get(key);
+        if (state == null) return null;
+        final State copy = new State();
+        copy.lastAttemptMs = state.lastAttemptMs;
+        copy.nextAttemptMs = state.nextAttemptMs;
+        copy.misses = state.misses;
+        copy.errors = state.errors;
+        System.arraycopy(state.results, 0, copy.results, 0, copy.results.length);
+        copy.url = state.url;
+        copy.etag = state.etag;
+        copy.lastModified = state.lastModified;
+        copy.contentHash = state.contentHash;
+        return copy;
+    }
+
+    /**
+     * Records the validators of a downloaded image, which are used to make later
+     * downloads of the same url conditional
+     * @param key Key of the icon
+     * @param url Url the image was downloaded from
+     * @param etag ETag response header, if any
+     * @param lastModified Last-Modified response header, if any
+     * @param contentHash Fingerprint of the downloaded data, from HashLib
+     */
+    public synchronized void setValidators(String key, String url, @Nullable String etag,
+                                           @Nullable String lastModified, long contentHash) {
+        load();
+        final State state = states.get(key);
+        if (state == null) return;
+        state.url = url;
+        state.etag = etag;
+        state.lastModified = lastModified;
+        state.contentHash = contentHash;
+        queueSave();
+    }
+
+    /** Forgets a key, so it will be attempted next time it's checked */
+    public synchronized void remove(String key) {
+        load();
+        if (states.remove(key) != null) queueSave();
+    }
+
+    /** Forgets every key, and deletes the persisted store */
+    public synchronized void clear() {
+        states.clear();
+        loaded = true;
+        FileLib.delete(file);
+    }
+
+    /** Writes the store to disk now */
+    public synchronized void save() {
+        saveQueued = false;
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(states.size());
+            for (Map.Entry<String, State> entry : states.entrySet()) {
+                final State state = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(state.lastAttemptMs);
+                out.writeLong(state.nextAttemptMs);
+                out.writeInt(state.misses);
+                out.writeByte(state.results.length);
+                for (Result result : state.results) out.writeByte(result.ordinal());
+                writeNullableUTF(out, state.url);
+                writeNullableUTF(out, state.etag);
+                writeNullableUTF(out, state.lastModified);
+                out.writeLong(state.contentHash);
+                out.writeInt(state.errors);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save", e);
+            FileLib.delete(tmpFile);
+            return;
+        }
+        if (!tmpFile.renameTo(file)) Log.e(TAG, "Failed to replace " + file);
+    }
+
+    private void queueSave() {
+        if (saveQueued) return;
+        saveQueued = true;
+        IconScheduler.fetch(this::save);
+    }
+
+    private void load() {
+        if (loaded) return;
+        loaded = true;
+        if (!file.exists()) return;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            final int magic = in.readInt();
+            final int version = in.readInt();
+            if (magic != FILE_MAGIC || version < 1 || version > FILE_VERSION) {
+                Log.w(TAG, "Invalid header, ignoring saved state");
+                return;
+            }
+            final Result[] results = Result.values();
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String key = in.readUTF();
+                final State state = new State();
+                state.lastAttemptMs = in.readLong();
+                state.nextAttemptMs = in.readLong();
+                state.misses = in.readInt();
+                final int resultCount = in.readByte();
+                for (int j = 0; j < resultCount; j++) {
+                    final int result = in.readByte();
+                    if (j < state.results.length && result >= 0 && result < results.length)
+                        state.results[j] = results[result];
+                }
+                // Validators were added in version 2
+                if (version >= 2) {
+                    state.url = readNullableUTF(in);
+                    state.etag = readNullableUTF(in);
+                    state.lastModified = readNullableUTF(in);
+                    state.contentHash = in.readLong();
+                }
+                // Error counts were added in version 3
+                if (version >= 3) state.errors = in.readInt();
+                states.put(key, state);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to load, some icons may be checked again", e);
+        }
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, @Nullable String value)
+            throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+    @Nullable
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
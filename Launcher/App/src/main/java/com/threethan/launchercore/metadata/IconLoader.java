@@ -7,20 +7,31 @@ import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
 import androidx.core.content.res.ResourcesCompat;
 
 import com.threethan.launchercore.Core;
 import com.threethan.launchercore.adapter.UtilityApplicationInfo;
+import com.threethan.launchercore.lib.BitmapPool;
+import com.threethan.launchercore.lib.FileLib;
+import com.threethan.launchercore.lib.HashLib;
 import com.threethan.launchercore.lib.ImageLib;
 import com.threethan.launchercore.lib.StringLib;
 import com.threethan.launchercore.util.App;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
 
 /*
@@ -34,50 +45,249 @@ public abstract class IconLoader {
     private static final int ICON_QUALITY = 50;
     public static final int ICON_HEIGHT = 192;
     public static final String ICON_CACHE_FOLDER = "/icon-cache";
-    public static final Map<String, Drawable> cachedIcons = new ConcurrentHashMap<>();
+    /** Bitmaps which are no longer used, to be reused when decoding and scaling icons */
+    public static final BitmapPool bitmapPool = new BitmapPool(8 * 1024 * 1024);
+    /** Decoded icons by cacheName, bounded by a memory budget */
+    public static final IconCache cachedIcons = new IconCache(bitmapPool);
     public static final Object ICON_CUSTOM_FOLDER = "/icon-custom";
+    private static volatile int targetHeight = ICON_HEIGHT;
+
+    static {
+        Core.whenReady(cachedIcons::updateBudget);
+    }
 
     public static void cacheIcon(ApplicationInfo app, Drawable iconDrawable) {
-        cachedIcons.put(StringLib.toValidFilename(app.packageName), iconDrawable);
+        if (iconDrawable == null) return;
+        cachedIcons.putIcon(cacheName(app), iconDrawable);
+    }
+    /** @return True if the icon for the app is currently held in memory */
+    public static boolean isIconResident(ApplicationInfo app) {
+        return cachedIcons.contains(cacheName(app));
+    }
+
+    /**
+     * An icon load which is currently in progress for some cacheName.
+     * Concurrent requests for the same icon share it instead of decoding again.
+     */
+    private static class IconRequest {
+        /** Completed with the first icon found, or null if none could be loaded */
+        final CompletableFuture<Drawable> future = new CompletableFuture<>();
+        /** Every consumer waiting on this request, which also receive any later download */
+        final List<Consumer<Drawable>> consumers = new CopyOnWriteArrayList<>();
+    }
+    private static final Map<String, IconRequest> iconRequests = new ConcurrentHashMap<>();
+
+    /**
+     * Loads the icon for an app.
+     * The callback will be called on a background thread once the icon is loaded,
+     * and may be called again after a delay if a new icon is downloaded
+     * <p>
+     * If the same icon is already being loaded, the callback will share that load
+     * @param app App to get the icon for
+     * @param consumer Consumer which handles the icon
+     * @return A future which may be cancelled if the icon is no longer needed before it loads
+     */
+    public static Future<?> loadIcon(ApplicationInfo app, final Consumer<Drawable> consumer) {
+        return loadIcon(app, consumer, false);
     }
 
     /**
      * Loads the icon for an app.
-     * The callback will be called immediately on this thread,
-     * and may also be called on a different thread after a small delay
+     * The callback will be called on a background thread once the icon is loaded,
+     * and may be called again after a delay if a new icon is downloaded
+     * <p>
+     * If the same icon is already being loaded, the callback will share that load
      * @param app App to get the icon for
      * @param consumer Consumer which handles the icon
+     * @param retain If true, every icon passed to the consumer is retained, and must be passed
+     *               to {@link #releaseIcon} once no longer displayed, so its bitmap may be reused
+     *               once it's removed from the cache. Otherwise, its bitmap is never reused.
+     * @return A future which may be cancelled if the icon is no longer needed before it loads
      */
-    public static void loadIcon(ApplicationInfo app, final Consumer<Drawable> consumer) {
-        IconUpdater.executorService.submit(() -> {
-            if (app instanceof UtilityApplicationInfo uApp)
+    public static Future<?> loadIcon(ApplicationInfo app, final Consumer<Drawable> consumer,
+                                     boolean retain) {
+        final IconLoadFuture load = new IconLoadFuture();
+        // Marks each icon before it's given to the consumer, or cached where it could be pooled.
+        // Once cancelled, the consumer's view has moved on, so later downloads aren't retained.
+        final Consumer<Drawable> marked = icon -> {
+            if (load.cancelled) return;
+            if (retain) cachedIcons.retain(icon);
+            else cachedIcons.markEscaped(icon);
+            consumer.accept(icon);
+        };
+        load.decode = IconScheduler.decode(() -> {
+            if (app instanceof UtilityApplicationInfo uApp) {
                 consumer.accept(uApp.getDrawable());
-            else if (IconLoader.cachedIcons.containsKey(cacheName(app)))
-                consumer.accept(IconLoader.cachedIcons.get(cacheName(app)));
-            else loadIcon(icon -> {
-                    consumer.accept(icon);
+                return;
+            }
+            final String key = cacheName(app);
+            final Drawable cached = IconLoader.cachedIcons.get(key, retain);
+            if (cached != null) {
+                consumer.accept(cached);
+                return;
+            }
+
+            final IconRequest request = new IconRequest();
+            request.consumers.add(marked);
+            final IconRequest existing = iconRequests.putIfAbsent(key, request);
+            if (existing != null) {
+                // Join the in-flight request
+                existing.consumers.add(marked);
+                existing.future.thenAccept(icon -> { if (icon != null) marked.accept(icon); });
+                return;
+            }
+            try {
+                loadIcon(icon -> {
+                    if (request.future.complete(icon)) {
+                        iconRequests.remove(key, request);
+                        marked.accept(icon);
+                    } else for (Consumer<Drawable> c : request.consumers) c.accept(icon);
                     cacheIcon(app, icon);
                 }, app);
+            } finally {
+                // Nothing could be loaded locally, release any waiting consumers
+                if (request.future.complete(null)) iconRequests.remove(key, request);
+            }
         });
+        return load;
+    }
+
+    /**
+     * The future of an icon load. Once cancelled, its consumer is given no more icons,
+     * including any downloaded after the load itself finished.
+     */
+    private static class IconLoadFuture implements Future<Object> {
+        private volatile boolean cancelled = false;
+        private Future<?> decode;
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            cancelled = true;
+            decode.cancel(mayInterruptIfRunning);
+            return true;
+        }
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+        @Override
+        public boolean isDone() {
+            return cancelled || decode.isDone();
+        }
+        @Override
+        public Object get() throws ExecutionException, InterruptedException {
+            return decode.get();
+        }
+        @Override
+        public Object get(long timeout, TimeUnit unit)
+                throws ExecutionException, InterruptedException, TimeoutException {
+            return decode.get(timeout, unit);
+        }
+    }
+    /**
+     * Releases an icon given by {@link #loadIcon(ApplicationInfo, Consumer, boolean)}
+     * once it's no longer displayed
+     * @param icon Icon to release, may be null
+     */
+    public static void releaseIcon(@Nullable Drawable icon) {
+        cachedIcons.release(icon);
+    }
+
+    /**
+     * Loads an app's icon into memory from the custom or cached icon file, if there is one,
+     * so that it will be ready when its view is bound.
+     * Does not load from the package manager nor download anything.
+     * @param app App to get the icon for
+     * @return A future which may be cancelled if the icon is no longer needed before it loads
+     */
+    public static Future<?> prefetchIcon(ApplicationInfo app) {
+        return IconScheduler.decode(() -> {
+            if (app instanceof UtilityApplicationInfo) return;
+            final String key = cacheName(app);
+            if (cachedIcons.contains(key)) return;
+
+            // Not registered as a request, since loads which join one expect it to fall back
+            // to the package manager and download if there is no file
+            if (iconRequests.containsKey(key)) return;
+            cacheIcon(app, loadIconFromFile(app));
+        }, IconScheduler.PRIORITY_PREFETCH);
+    }
+
+    /** @return The app's icon from its custom or cached icon file, or null if there is none */
+    @Nullable
+    private static Drawable loadIconFromFile(ApplicationInfo app) {
+        // Try to load from external custom icon file
+        final File iconCustomFile = iconCustomFileForApp(app);
+        if (iconCustomFile.exists()) {
+            Drawable appIcon = drawableFromFile(iconCustomFile);
+            if (appIcon != null) return appIcon;
+        }
+        // Try to load from cached icon
+        return drawableFromFile(iconCacheFileForApp(app));
+    }
+
+    /**
+     * Loads an image, downsampled to the current target height.
+     * Files in the icon cache folder are read from the icon pack if present there.
+     * @return A drawable of the image, or null if it doesn't exist or couldn't be decoded
+     */
+    @Nullable
+    static Drawable drawableFromFile(File file) {
+        Bitmap bitmap = null;
+        long fingerprint = 0;
+        if (isInIconPack(file)) {
+            final IconPack.Image image = getIconPack().getImage(file.getName());
+            if (image != null) {
+                bitmap = ImageLib.bitmapFromBuffer(image.data, targetHeight, bitmapPool);
+                // Recorded when the image was saved, so its data isn't hashed again
+                fingerprint = image.fingerprint;
+            }
+        }
+        // Fall back to individual files, which may have been saved by older versions
+        if (bitmap == null && file.exists()) {
+            bitmap = ImageLib.bitmapFromFile(file, targetHeight, bitmapPool);
+            // Files are always replaced rather than modified in place
+            fingerprint = HashLib.fingerprint(file.getPath().hashCode(),
+                    file.length(), file.lastModified());
+        }
+        if (bitmap == null) return null;
+        // The same image decoded at a different size shouldn't be considered the same
+        return new IconDrawable(Core.context().getResources(), bitmap,
+                HashLib.fingerprint(fingerprint, bitmap.getHeight()));
+    }
+
+    private static IconPack iconPack;
+    /** @return The pack which holds all images in the icon cache folder */
+    public static synchronized IconPack getIconPack() {
+        if (iconPack == null) iconPack = new IconPack(
+                new File(Core.context().getApplicationInfo().dataDir + ICON_CACHE_FOLDER));
+        return iconPack;
+    }
+    /** @return True if an image is saved for the file, either in the icon pack or individually */
+    static boolean isImageCached(File file) {
+        return (isInIconPack(file) && getIconPack().contains(file.getName())) || file.exists();
+    }
+    /** @return True if the file is in the icon cache folder, so should be kept in the pack */
+    private static boolean isInIconPack(File file) {
+        return Objects.equals(file.getParent(), getIconPack().getFolder().getPath());
+    }
+
+    /**
+     * Sets the height, in pixels, at which icons are displayed.
+     * Icons are decoded no larger than this, to save memory and decode time.
+     * @param height Height of the largest tile which may display an icon
+     */
+    public static void setTargetHeight(int height) {
+        height = Math.max(1, Math.min(ICON_HEIGHT, height));
+        if (height == targetHeight) return;
+        // Icons decoded at a smaller size would now look blurry
+        if (height > targetHeight) cachedIcons.evictAll();
+        targetHeight = height;
     }
 
     private static void loadIcon(Consumer<Drawable> callback, ApplicationInfo app) {
         // Everything in the try will still attempt to download an icon
         try {
-            Drawable appIcon = null;
-            // Try to load from external custom icon file
-            final File iconCustomFile = iconCustomFileForApp(app);
-            if (iconCustomFile.exists())
-                appIcon = Drawable.createFromPath(iconCustomFile.getAbsolutePath());
-            if (appIcon != null) {
-                callback.accept(appIcon);
-                return;
-            }
-            // Try to load from cached icon file
-            final File iconCacheFile = iconCacheFileForApp(app);
-
-            if (iconCacheFile.exists())
-                appIcon = Drawable.createFromPath(iconCacheFile.getAbsolutePath());
+            Drawable appIcon = loadIconFromFile(app);
             if (appIcon != null) {
                 callback.accept(appIcon);
                 return;
@@ -138,16 +348,60 @@ public abstract class IconLoader {
             Log.i("Icon", "Exception while converting file " + app.packageName, e);
         }
     }
+    /**
+     * Resizes and compresses a bitmap, then saves it.
+     * Files in the icon cache folder are appended to the icon pack instead of saved individually.
+     * @param file File to save to
+     * @param bitmap Bitmap to save
+     */
     public static void compressAndSaveBitmap(File file, Bitmap bitmap) {
+        final Bitmap resized = ImageLib.getResizedBitmap(bitmap, ICON_HEIGHT, bitmapPool);
+        try {
+            saveWebp(file, resized);
+        } finally {
+            if (resized != bitmap) bitmapPool.put(resized);
+        }
+    }
+
+    /**
+     * Decodes downloaded image data straight to the icon height, then compresses and saves it.
+     * Unlike {@link #compressAndSaveBitmap}, the image is never held in memory at full size.
+     * @param file File to save to
+     * @param data Encoded image data
+     * @return True if the data was a valid image and has been saved
+     */
+    static boolean transcodeAndSave(File file, byte[] data) {
+        final Bitmap bitmap = ImageLib.decodeScratch(data, ICON_HEIGHT, bitmapPool);
+        if (bitmap == null) return false;
+        try {
+            return saveWebp(file, bitmap);
+        } finally {
+            bitmapPool.put(bitmap);
+        }
+    }
+
+    /**
+     * Compresses a bitmap which is already the right size, then saves it.
+     * Individual files are written to a temporary file first, then renamed,
+     * so a partially written file is never left in place.
+     * @return True if the file was saved
+     */
+    private static boolean saveWebp(File file, Bitmap bitmap) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.WEBP, ICON_QUALITY, outputStream);
+        if (isInIconPack(file)) {
+            if (!getIconPack().put(file.getName(), outputStream.toByteArray())) return false;
+            // Remove any individual file saved by an older version, it's now outdated
+            if (file.exists()) //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            return true;
+        }
         try {
-            //noinspection ResultOfMethodCallIgnored
-            Objects.requireNonNull(file.getParentFile()).mkdirs();
-            FileOutputStream fileOutputStream = new FileOutputStream(file.getAbsolutePath(), false);
-            bitmap = ImageLib.getResizedBitmap(bitmap, ICON_HEIGHT);
-            bitmap.compress(Bitmap.CompressFormat.WEBP, ICON_QUALITY, fileOutputStream);
-            fileOutputStream.close();
+            FileLib.writeAtomic(file, outputStream.toByteArray());
+            return true;
         } catch (IOException e) {
             Log.e("Icon", "IOException during bitmap save", e);
+            return false;
         }
     }
 }
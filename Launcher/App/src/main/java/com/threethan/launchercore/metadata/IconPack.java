@@ -0,0 +1,445 @@
+package com.threethan.launchercore.metadata;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.threethan.launchercore.lib.FileLib;
+import com.threethan.launchercore.lib.HashLib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An append-only pack of cached icon images, which replaces keeping one file per icon.
+ * <p>
+ * Image data is appended to a single data file, and an index file records the key, offset,
+ * length, version and fingerprint of each image. Fingerprints are computed once when an image
+ * is saved, so loading it doesn't need to hash its data again. Both files are memory-mapped, so loading an icon doesn't
+ * need to open, stat and read a separate file on slow flash storage.
+ * <p>
+ * Saved data can be read straight away, but is only indexed once it's durable. Data files are
+ * synced in the background, once per burst of saves and without holding the pack's lock,
+ * and the index records for everything synced are then appended together.
+ * <p>
+ * Replacing or removing an icon leaves dead space in the data file, which is compacted
+ * in the background once it makes up most of the pack. Compaction copies the live data
+ * without holding the pack's lock, so icons may still be loaded and saved meanwhile.
+ */
+public class IconPack {
+    private static final String TAG = "IconPack";
+    static final String DATA_FILE = "icons.pack";
+    static final String INDEX_FILE = "icons.idx";
+    private static final int INDEX_MAGIC = 0x4C4C4950; // "LLIP"
+    private static final int INDEX_VERSION = 2;
+    // Size of each index record, excluding the key
+    private static final int RECORD_BYTES = 4 + 8 + 4 + 4 + 8;
+    // Compaction will only occur once at least this much of the pack is unused
+    private static final long COMPACT_MIN_DEAD_BYTES = 1024 * 1024;
+    // Length written to the index to signify an entry was removed
+    private static final int REMOVED = -1;
+
+    /** The location of a single image within the pack */
+    public static class Entry {
+        public final long offset;
+        public final int length;
+        public final int version;
+        /** Fingerprint of the image data, from {@link HashLib#fingerprint(byte[])} */
+        public final long fingerprint;
+        Entry(long offset, int length, int version, long fingerprint) {
+            this.offset = offset;
+            this.length = length;
+            this.version = version;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    /** Image data read from the pack, along with the fingerprint recorded when it was saved */
+    public static class Image {
+        /** A read-only buffer of the image data */
+        public final ByteBuffer data;
+        public final long fingerprint;
+        Image(ByteBuffer data, long fingerprint) {
+            this.data = data;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private final File folder;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private RandomAccessFile dataFile;
+    private RandomAccessFile indexFile;
+    private MappedByteBuffer dataBuffer;
+    private long liveBytes = 0;
+    private long deadBytes = 0;
+    private boolean compactQueued = false;
+    // Records which aren't in the index yet, in the order they were made
+    private List<Map.Entry<String, Entry>> unindexed = new ArrayList<>();
+    private boolean indexQueued = false;
+    private boolean compacting = false;
+    // Incremented whenever the pack is closed, so compaction can tell if its copy is stale
+    private int generation = 0;
+
+    /** @param folder Folder in which to keep the pack files */
+    public IconPack(File folder) {
+        this.folder = folder;
+    }
+
+    /** @return The folder in which the pack is kept */
+    public File getFolder() {
+        return folder;
+    }
+
+    /**
+     * Gets the image data for a key
+     * @param key Key of the image, usually the name of the file it would have been saved as
+     * @return A read-only buffer of the image data, or null if not in the pack
+     */
+    @Nullable
+    public ByteBuffer get(String key) {
+        final Image image = getImage(key);
+        return image == null ? null : image.data;
+    }
+
+    /**
+     * Gets the image data for a key, along with its fingerprint
+     * @param key Key of the image, usually the name of the file it would have been saved as
+     * @return The image, or null if not in the pack
+     */
+    @Nullable
+    public synchronized Image getImage(String key) {
+        if (!open()) return null;
+        final Entry entry = entries.get(key);
+        if (entry == null) return null;
+        try {
+            return new Image(slice(entry), entry.fingerprint);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read " + key, e);
+            return null;
+        }
+    }
+
+    /** @return True if there is image data for the key */
+    public synchronized boolean contains(String key) {
+        return open() && entries.containsKey(key);
+    }
+
+    /** @return The version of the image for the key, or 0 if not in the pack */
+    public synchronized int getVersion(String key) {
+        if (!open()) return 0;
+        final Entry entry = entries.get(key);
+        return entry == null ? 0 : entry.version;
+    }
+
+    /**
+     * Appends image data to the pack, replacing any previous data for the key
+     * @param key Key of the image, usually the name of the file it would have been saved as
+     * @param data Encoded image data
+     * @return True if the data was written
+     */
+    public synchronized boolean put(String key, byte[] data) {
+        if (!open()) return false;
+        try {
+            final long offset = dataFile.length();
+            dataFile.seek(offset);
+            dataFile.write(data);
+            final Entry old = entries.get(key);
+            final Entry entry = new Entry(offset, data.length, old == null ? 1 : old.version + 1,
+                    HashLib.fingerprint(data));
+            // Data must be durable before it's indexed, so a partial write is never indexed
+            queueIndexRecord(key, entry);
+            track(key, entry);
+            queueCompactIfNeeded();
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + key, e);
+            return false;
+        }
+    }
+
+    /** Removes the image data for a key, if any */
+    public synchronized void remove(String key) {
+        if (!open() || !entries.containsKey(key)) return;
+        final Entry removed = new Entry(0, REMOVED, 0, 0);
+        // Queued with saves, so it's indexed after any save of the same key
+        queueIndexRecord(key, removed);
+        track(key, removed);
+        queueCompactIfNeeded();
+    }
+
+    /**
+     * Syncs image data which was saved since the last sync, then appends its index records.
+     * The sync is made without holding the pack's lock, so icons may still be loaded meanwhile.
+     */
+    public void flush() {
+        final List<Map.Entry<String, Entry>> records;
+        final FileChannel channel;
+        final int startGeneration;
+        synchronized (this) {
+            indexQueued = false;
+            if (unindexed.isEmpty() || dataFile == null) return;
+            records = unindexed;
+            unindexed = new ArrayList<>();
+            channel = dataFile.getChannel();
+            startGeneration = generation;
+        }
+        IOException error = null;
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            error = e;
+        }
+        synchronized (this) {
+            // If the pack was closed meanwhile, it was cleared or compacted with these entries
+            if (generation != startGeneration) return;
+            try {
+                if (error != null) throw error;
+                for (Map.Entry<String, Entry> record : records)
+                    writeIndexRecord(indexFile.getChannel(), record.getKey(), record.getValue());
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to index " + records.size() + " images", e);
+            }
+        }
+    }
+
+    /** Deletes the pack entirely */
+    public synchronized void clear() {
+        close();
+        FileLib.delete(new File(folder, DATA_FILE));
+        FileLib.delete(new File(folder, INDEX_FILE));
+    }
+
+    /**
+     * Rewrites the pack to contain only live image data.
+     * <p>
+     * Data which was live when compaction started is copied to new files without locking
+     * the pack. Only changes made during that copy are then copied while locked, just before
+     * the new files replace the old ones.
+     */
+    public void compact() {
+        final Map<String, Entry> snapshot;
+        final ByteBuffer source;
+        final int startGeneration;
+        final long before;
+        synchronized (this) {
+            compactQueued = false;
+            if (compacting || !open()) return;
+            try {
+                source = map();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to compact", e);
+                return;
+            }
+            snapshot = new HashMap<>(entries);
+            startGeneration = generation;
+            before = source.capacity();
+            compacting = true;
+        }
+        final File tmpData = new File(folder, DATA_FILE + ".tmp");
+        final File tmpIndex = new File(folder, INDEX_FILE + ".tmp");
+        try {
+            long offset;
+            try (RandomAccessFile outData = new RandomAccessFile(tmpData, "rw");
+                 RandomAccessFile outIndex = new RandomAccessFile(tmpIndex, "rw")) {
+                outData.setLength(0);
+                outIndex.setLength(0);
+                writeIndexHeader(outIndex.getChannel());
+                offset = writeEntries(snapshot, source, outData, outIndex, 0);
+            }
+            synchronized (this) {
+                if (generation != startGeneration) {
+                    // The pack was cleared or replaced meanwhile, so the copy is stale
+                    FileLib.delete(tmpData);
+                    FileLib.delete(tmpIndex);
+                    return;
+                }
+                try (RandomAccessFile outData = new RandomAccessFile(tmpData, "rw");
+                     RandomAccessFile outIndex = new RandomAccessFile(tmpIndex, "rw")) {
+                    // Copy any images which were saved or removed during the copy above
+                    final Map<String, Entry> changed = new HashMap<>();
+                    for (Map.Entry<String, Entry> mapEntry : entries.entrySet())
+                        if (snapshot.get(mapEntry.getKey()) != mapEntry.getValue())
+                            changed.put(mapEntry.getKey(), mapEntry.getValue());
+                    offset = writeEntries(changed, map(), outData, outIndex, offset);
+                    for (String key : snapshot.keySet())
+                        if (!entries.containsKey(key)) writeIndexRecord(outIndex.getChannel(),
+                                key, new Entry(0, REMOVED, 0, 0));
+                    outData.getFD().sync();
+                    outIndex.getFD().sync();
+                }
+                close();
+                // Delete the old index first, so being interrupted part way just results in an empty pack
+                FileLib.delete(new File(folder, INDEX_FILE));
+                if (!tmpData.renameTo(new File(folder, DATA_FILE))
+                        || !tmpIndex.renameTo(new File(folder, INDEX_FILE))) {
+                    Log.e(TAG, "Failed to replace pack files after compacting, clearing pack");
+                    clear();
+                    return;
+                }
+                open();
+                Log.i(TAG, "Compacted from " + before + " to " + liveBytes + " bytes");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to compact", e);
+            FileLib.delete(tmpData);
+            FileLib.delete(tmpIndex);
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    /**
+     * Writes images to new pack files
+     * @param entries Entries to write, which are all in the source
+     * @param source Mapped data file which the entries are from
+     * @param offset Current length of the new data file
+     * @return The new length of the new data file
+     */
+    private static long writeEntries(Map<String, Entry> entries, ByteBuffer source,
+                                     RandomAccessFile outData, RandomAccessFile outIndex,
+                                     long offset) throws IOException {
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+            final Entry entry = mapEntry.getValue();
+            outData.getChannel().write(slice(source, entry), offset);
+            writeIndexRecord(outIndex.getChannel(), mapEntry.getKey(),
+                    new Entry(offset, entry.length, entry.version, entry.fingerprint));
+            offset += entry.length;
+        }
+        return offset;
+    }
+
+    /** Opens the pack files and reads the index, if not already open */
+    private boolean open() {
+        if (dataFile != null) return true;
+        try {
+            //noinspection ResultOfMethodCallIgnored
+            folder.mkdirs();
+            dataFile = new RandomAccessFile(new File(folder, DATA_FILE), "rw");
+            indexFile = new RandomAccessFile(new File(folder, INDEX_FILE), "rw");
+            readIndex();
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open icon pack", e);
+            close();
+            return false;
+        }
+    }
+    private void close() {
+        try {
+            if (dataFile != null) dataFile.close();
+            if (indexFile != null) indexFile.close();
+        } catch (IOException ignored) {}
+        dataFile = null;
+        indexFile = null;
+        dataBuffer = null;
+        // Compaction writes every entry, and clearing drops them, so these aren't needed
+        unindexed = new ArrayList<>();
+        generation++;
+        entries.clear();
+        liveBytes = 0;
+        deadBytes = 0;
+    }
+
+    private void readIndex() throws IOException {
+        final FileChannel channel = indexFile.getChannel();
+        final long dataLength = dataFile.length();
+        if (channel.size() < 8) {
+            resetFiles();
+            return;
+        }
+        final MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        if (index.getInt() != INDEX_MAGIC || index.getInt() != INDEX_VERSION) {
+            Log.w(TAG, "Invalid index header, resetting");
+            resetFiles();
+            return;
+        }
+        int validEnd = index.position();
+        while (index.remaining() >= 4) {
+            final int keyLength = index.getInt();
+            if (keyLength <= 0 || keyLength > index.remaining() - (RECORD_BYTES - 4)) break;
+            final byte[] keyBytes = new byte[keyLength];
+            index.get(keyBytes);
+            final Entry entry = new Entry(index.getLong(), index.getInt(), index.getInt(),
+                    index.getLong());
+            if (entry.length != REMOVED && entry.offset + entry.length > dataLength) break;
+            track(new String(keyBytes, StandardCharsets.UTF_8), entry);
+            validEnd = index.position();
+        }
+        // Drop any partially written record at the end
+        if (validEnd < channel.size()) channel.truncate(validEnd);
+    }
+    private void resetFiles() throws IOException {
+        dataFile.setLength(0);
+        indexFile.setLength(0);
+        writeIndexHeader(indexFile.getChannel());
+    }
+
+    private void track(String key, Entry entry) {
+        final Entry old = entry.length == REMOVED ? entries.remove(key) : entries.put(key, entry);
+        if (old != null) {
+            liveBytes -= old.length;
+            deadBytes += old.length;
+        }
+        if (entry.length != REMOVED) liveBytes += entry.length;
+    }
+
+    private void queueIndexRecord(String key, Entry entry) {
+        unindexed.add(new AbstractMap.SimpleImmutableEntry<>(key, entry));
+        if (indexQueued) return;
+        indexQueued = true;
+        IconScheduler.fetch(this::flush);
+    }
+
+    private void queueCompactIfNeeded() {
+        if (compactQueued || deadBytes < COMPACT_MIN_DEAD_BYTES || deadBytes < liveBytes) return;
+        compactQueued = true;
+        IconScheduler.fetch(this::compact);
+    }
+
+    private ByteBuffer slice(Entry entry) throws IOException {
+        if (dataBuffer == null || entry.offset + entry.length > dataBuffer.capacity()) map();
+        return slice(dataBuffer, entry);
+    }
+    /**
+     * Maps the whole data file. Since it's only ever appended to, the mapping stays valid
+     * (for the entries it covers) even after more data is written or the pack is closed.
+     */
+    private MappedByteBuffer map() throws IOException {
+        if (dataBuffer == null || dataBuffer.capacity() < dataFile.length())
+            dataBuffer = dataFile.getChannel()
+                    .map(FileChannel.MapMode.READ_ONLY, 0, dataFile.length());
+        return dataBuffer;
+    }
+    private static ByteBuffer slice(ByteBuffer source, Entry entry) {
+        final ByteBuffer buffer = source.duplicate();
+        buffer.position((int) entry.offset);
+        buffer.limit((int) (entry.offset + entry.length));
+        return buffer.slice();
+    }
+
+    private static void writeIndexHeader(FileChannel channel) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(INDEX_MAGIC).putInt(INDEX_VERSION).flip();
+        channel.write(header, 0);
+    }
+    private static void writeIndexRecord(FileChannel channel, String key, Entry entry)
+            throws IOException {
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_BYTES + keyBytes.length);
+        record.putInt(keyBytes.length).put(keyBytes).putLong(entry.offset).putInt(entry.length)
+                .putInt(entry.version).putLong(entry.fingerprint).flip();
+        channel.write(record, channel.size());
+    }
+}
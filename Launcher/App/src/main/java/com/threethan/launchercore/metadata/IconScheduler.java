@@ -0,0 +1,129 @@
+package com.threethan.launchercore.metadata;
+
+import android.os.Process;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs icon work on a small, fixed number of background threads.
+ * <p>
+ * There are three separate lanes:
+ * <ul>
+ * <li>Decode, for loading icons from disk. Tasks are ordered by priority, and tasks of equal
+ * priority run newest first, since the most recently bound views are the ones on screen.</li>
+ * <li>Fetch, for downloading icons. This has lower thread priority and bounded concurrency,
+ * so slow networks can't starve the decode lane.</li>
+ * <li>Request, for the individual network requests made by fetch tasks, so that every source
+ * for an icon can be requested in parallel. Fetch tasks only queue their requests and never
+ * wait on them, so no thread in either lane is blocked by another.</li>
+ * </ul>
+ * Returned futures may be cancelled (without interrupting) if a task is no longer needed,
+ * such as when the view holder it was for gets recycled before it ran.
+ */
+public abstract class IconScheduler {
+    /** Priority for icons of views which are currently bound */
+    public static final int PRIORITY_VISIBLE = 0;
+    /** Priority for icons which may be shown soon, but aren't yet */
+    public static final int PRIORITY_PREFETCH = 1;
+
+    private static final int DECODE_THREADS
+            = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int FETCH_THREADS = 3;
+    private static final int REQUEST_THREADS = 8;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final ThreadPoolExecutor decodeExecutor = new ThreadPoolExecutor(
+            DECODE_THREADS, DECODE_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<>(),
+            threadFactory("IconDecode", Process.THREAD_PRIORITY_BACKGROUND));
+    private static final ThreadPoolExecutor fetchExecutor = new ThreadPoolExecutor(
+            FETCH_THREADS, FETCH_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            threadFactory("IconFetch",
+                    Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_LESS_FAVORABLE));
+    private static final ThreadPoolExecutor requestExecutor = new ThreadPoolExecutor(
+            REQUEST_THREADS, REQUEST_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            threadFactory("IconRequest",
+                    Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_LESS_FAVORABLE));
+    static {
+        decodeExecutor.allowCoreThreadTimeOut(true);
+        fetchExecutor.allowCoreThreadTimeOut(true);
+        requestExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final AtomicLong sequence = new AtomicLong();
+
+    /** A task for the decode lane, which is ordered by priority, then newest first */
+    private static class PrioritizedTask extends FutureTask<Void>
+            implements Comparable<PrioritizedTask> {
+        final int priority;
+        final long sequence;
+        PrioritizedTask(Runnable runnable, int priority, long sequence) {
+            super(runnable, null);
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+        @Override
+        public int compareTo(PrioritizedTask o) {
+            if (priority != o.priority) return Integer.compare(priority, o.priority);
+            return Long.compare(o.sequence, sequence);
+        }
+    }
+
+    /**
+     * Queues a task to load icons from disk or memory
+     * @param task Task to run
+     * @param priority One of PRIORITY_VISIBLE or PRIORITY_PREFETCH (lower runs first)
+     * @return A future which may be used to cancel the task before it runs
+     */
+    public static Future<?> decode(Runnable task, int priority) {
+        PrioritizedTask futureTask
+                = new PrioritizedTask(task, priority, sequence.getAndIncrement());
+        decodeExecutor.execute(futureTask);
+        return futureTask;
+    }
+    /**
+     * Queues a task to load icons from disk or memory, with visible priority
+     * @param task Task to run
+     * @return A future which may be used to cancel the task before it runs
+     */
+    public static Future<?> decode(Runnable task) {
+        return decode(task, PRIORITY_VISIBLE);
+    }
+
+    /**
+     * Queues a task which downloads icons from the network
+     * @param task Task to run
+     * @return A future which may be used to cancel the task before it runs
+     */
+    public static Future<?> fetch(Runnable task) {
+        return fetchExecutor.submit(task);
+    }
+
+    /**
+     * Queues a single network request, which is usually part of a fetch task
+     * @param task Task to run
+     * @return A future for the task's result, which may be cancelled if no longer needed
+     */
+    public static <T> Future<T> request(Callable<T> task) {
+        return requestExecutor.submit(task);
+    }
+
+    private static ThreadFactory threadFactory(String name, int threadPriority) {
+        final AtomicInteger count = new AtomicInteger();
+        return runnable -> new Thread(() -> {
+            Process.setThreadPriority(threadPriority);
+            runnable.run();
+        }, name + "-" + count.incrementAndGet());
+    }
+}
@@ -1,22 +1,31 @@
 package com.threethan.launchercore.metadata;
 
 import android.content.pm.ApplicationInfo;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.util.Log;
 
+import androidx.annotation.Nullable;
+
+import com.threethan.launchercore.Core;
+import com.threethan.launchercore.lib.FileLib;
+import com.threethan.launchercore.lib.HashLib;
 import com.threethan.launchercore.lib.StringLib;
 import com.threethan.launchercore.util.App;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.Objects;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * This abstract class is dedicated to downloading icons from online repositories
@@ -52,22 +61,55 @@ public abstract class IconUpdater {
             "https://www.google.com/s2/favicons?domain=%s&sz=256", // Provides high-res icons
             "https://%s/favicon.ico", // The standard directory for a website's icon to be placed
     };
-    private static final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<>();
+    // Keys of icons which are currently being checked
+    private static final Set<String> checking = ConcurrentHashMap.newKeySet();
+    private static final String TAG = "IconUpdater";
+
+    static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+    static final int DEFAULT_READ_TIMEOUT_MS = 10000;
+    private static volatile int connectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+    private static volatile int readTimeoutMs = DEFAULT_READ_TIMEOUT_MS;
+
+    // Used to measure how long it takes to fill the icon cache
+    private static final AtomicInteger checksInFlight = new AtomicInteger();
+    private static final AtomicInteger checkCount = new AtomicInteger();
+    private static volatile long fillStartMs = 0;
+    private static volatile long lastFillDurationMs = 0;
+
+    private static final String FETCH_STORE_FILE = "/icon-fetch-state";
+    private static IconFetchStore fetchStore;
 
     /**
-     * Stores the time when we're next allowed to try to download an icon for a package.
+     * Gets the store which records when icons were last downloaded, or failed to be,
+     * and when they may next be downloaded.
      * <p>
-     * Downloads are NOT automatically called at this time, but will be called asynchronously
-     * when the icon is next checked/displayed.
+     * Downloads are NOT automatically attempted at that time, but will be attempted
+     * asynchronously when the icon is next checked/displayed.
      * <p>
-     * Since this isn't stored persistently, all icons will be rechecked when the app is fully quit.
-     * This is a non-issue on LL since the LauncherService stays open persistently.
+     * Since this is stored persistently, icons which couldn't be found aren't rechecked
+     * every time the app is fully quit.
+     * @return The persistent fetch store
      */
-    public static final ConcurrentHashMap<String, Long> nextCheckByPackageMs = new ConcurrentHashMap<>();
+    public static synchronized IconFetchStore getFetchStore() {
+        if (fetchStore == null) fetchStore = new IconFetchStore(
+                new File(Core.context().getApplicationInfo().dataDir + FETCH_STORE_FILE));
+        return fetchStore;
+    }
 
-    // How many minutes before we can recheck an icon that hasn't downloaded
-    private static final long ICON_CHECK_TIME_MINUTES = 5;
-    public static final ExecutorService executorService = Executors.newCachedThreadPool();
+    /**
+     * Forgets the fetch history of an app, so its icon will be downloaded next time it's checked
+     * @param app Application info of the app
+     */
+    public static void resetFetchState(ApplicationInfo app) {
+        final String cacheName = IconLoader.cacheName(app);
+        getFetchStore().remove(cacheName);
+        getFetchStore().remove(cacheName + "-banner");
+    }
+
+    /** @return The key under which the app's download is recorded in the fetch store */
+    private static String fetchKey(ApplicationInfo app) {
+        return IconLoader.cacheName(app) + (App.isBanner(app) ? "-banner" : "");
+    }
 
     /**
      * Check if an icon should be downloaded for a particular app
@@ -76,75 +118,253 @@ public abstract class IconUpdater {
      */
     private static synchronized boolean shouldDownload(ApplicationInfo app) {
         if (IconLoader.iconCustomFileForApp(app).exists()) return false;
-        String packageName = App.isWebsite(app.packageName) ?
-                StringLib.baseUrl(app.packageName) : app.packageName;
-        if (!nextCheckByPackageMs.containsKey(packageName)) return true;
-        final long nextCheckMs = Objects.requireNonNull(nextCheckByPackageMs.get(packageName));
-        return System.currentTimeMillis() > nextCheckMs;
+        return getFetchStore().shouldAttempt(fetchKey(app));
     }
 
     /**
-     * Starts the download of an icon, if one should be downloaded for that app
+     * Starts the download of an icon, if one should be downloaded for that app.
+     * <p>
+     * Every source is requested in parallel, then the first which has an icon,
+     * in order of priority, is used and any others still running are cancelled.
+     * The fetch lane only starts the requests, it never waits on them.
      * @param app App for which to download an icon image
      * @param callback Called when the download completes successfully and the icon is changed
      */
     public static void check(ApplicationInfo app, final Consumer<Drawable> callback) {
-        executorService.submit(() -> {
-            if (!shouldDownload(app)) return;
+        IconScheduler.fetch(() -> {
+            final String key = fetchKey(app);
+            final IconFetchStore store = getFetchStore();
+            synchronized (IconUpdater.class) {
+                if (!shouldDownload(app) || !checking.add(key)) return;
+                store.beginAttempt(key);
+            }
 
-            final boolean isWebsite = App.isWebsite(app.packageName);
-            final String packageName = isWebsite ? StringLib.baseUrl(app.packageName) : app.packageName;
+            final long startMs = SystemClock.elapsedRealtime();
+            if (checksInFlight.getAndIncrement() == 0) fillStartMs = startMs;
+            final Runnable onFinished = () -> {
+                // Schedule the next check, whether we successfully downloaded it,
+                // or the download tried and failed
+                store.finishAttempt(key);
+                checking.remove(key);
 
-            final int delayMs = (int) (ICON_CHECK_TIME_MINUTES *1000*60);
-            nextCheckByPackageMs.put(packageName, System.currentTimeMillis() + delayMs);
+                final long endMs = SystemClock.elapsedRealtime();
+                Log.v(TAG, "Checked " + key + " in " + (endMs - startMs) + "ms");
+                checkCount.incrementAndGet();
+                if (checksInFlight.decrementAndGet() == 0) {
+                    lastFillDurationMs = endMs - fillStartMs;
+                    Log.d(TAG, "Finished checking icons, " + checkCount.get()
+                            + " checked in " + lastFillDurationMs + "ms");
+                }
+            };
 
-            final boolean isBanner = App.isBanner(app);
-            final File iconFile = IconLoader.iconCacheFileForApp(app);
+            try {
+                final boolean isWebsite = App.isWebsite(app.packageName);
+                final boolean isBanner = App.isBanner(app);
+                final File iconFile = IconLoader.iconCacheFileForApp(app);
+                final String dlPkg = getDownloadString(app);
+                final IconFetchStore.State previous = store.getState(key);
+                final boolean cached = IconLoader.isImageCached(iconFile);
+                final List<SourceRequest> requests = new ArrayList<>();
 
-            Object lock = locks.putIfAbsent(packageName, new Object());
-            if (lock == null) lock = locks.get(packageName);
-            synchronized (Objects.requireNonNull(lock)) {
-                try {
-                    final String dlPkg = getDownloadString(app);
-                    final Runnable success = ()
-                            -> callback.accept(Drawable.createFromPath(iconFile.getAbsolutePath()));
-
-                    // Priority repos
-                    for (final String url : (isBanner ? PRIORITY_URLS_BANNER : PRIORITY_URLS_SQUARE))
-                        if (downloadIconFromUrl(String.format(url, dlPkg), iconFile)) {
-                            success.run();
-                            return;
-                        }
-
-                    // New Metadata method
+                // Priority repos
+                for (final String url : (isBanner ? PRIORITY_URLS_BANNER : PRIORITY_URLS_SQUARE))
+                    requests.add(new SourceRequest(IconFetchStore.Source.PRIORITY,
+                            r -> request(r.source, String.format(url, dlPkg), previous, cached, r)));
+
+                // New Metadata method
+                requests.add(new SourceRequest(IconFetchStore.Source.METADATA, r -> {
                     final MetaMetadata.App appMeta = MetaMetadata.getForPackage(dlPkg);
-                    if (appMeta != null)
-                        if (appMeta.downloadImage(
-                                isBanner ? IMAGE_TYPE_BANNER : IMAGE_TYPE_SQUARE, iconFile)) {
-                            success.run();
-                            return;
-                        }
-
-                    // Fallback repos
-                    for (final String url : ( isWebsite ? ICON_URLS_WEB :
-                            (isBanner ? FALLBACK_URLS_BANNER : FALLBACK_URLS_SQUARE)))
-                        if (downloadIconFromUrl(String.format(url, dlPkg), iconFile)) {
-                            success.run();
-                            return;
-                        }
+                    final String metaUrl = appMeta == null ? null : appMeta.getImageUrl(
+                            isBanner ? IMAGE_TYPE_BANNER : IMAGE_TYPE_SQUARE);
+                    if (metaUrl == null)
+                        return new Download(r.source, null, IconFetchStore.Result.MISSING);
+                    return request(r.source, metaUrl, previous, cached, r);
+                }));
+
+                // Fallback repos
+                for (final String url : ( isWebsite ? ICON_URLS_WEB :
+                        (isBanner ? FALLBACK_URLS_BANNER : FALLBACK_URLS_SQUARE)))
+                    requests.add(new SourceRequest(IconFetchStore.Source.FALLBACK,
+                            r -> request(r.source, String.format(url, dlPkg), previous, cached, r)));
+
+                new Check(requests, download -> {
+                    final IconFetchStore.Result result = save(key, download, iconFile);
+                    store.recordResult(key, download.source, result);
+                    if (result == IconFetchStore.Result.FOUND)
+                        callback.accept(IconLoader.drawableFromFile(iconFile));
+                    return result;
+                }, onFinished).start();
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to start checking icon for " + key, e);
+                onFinished.run();
+            }
+        });
+    }
+
+    /**
+     * A request for an icon from a single source, as part of a check.
+     * <p>
+     * It may be cancelled at any point: before it runs, while it's connecting,
+     * or while it's downloading, in which case its connection is disconnected.
+     */
+    static class SourceRequest {
+        final IconFetchStore.Source source;
+        private final Function<SourceRequest, Download> task;
+        @Nullable private Future<?> future;
+        @Nullable private HttpURLConnection connection;
+        private boolean cancelled = false;
+        // Set once the request completes, then only accessed while locked on its check
+        @Nullable private Download download;
 
+        SourceRequest(IconFetchStore.Source source, Function<SourceRequest, Download> task) {
+            this.source = source;
+            this.task = task;
+        }
+
+        /**
+         * Tracks the connection currently used by this request, so it's disconnected if cancelled
+         * @return False if the request has already been cancelled, and shouldn't connect
+         */
+        synchronized boolean attach(HttpURLConnection connection) {
+            if (cancelled) return false;
+            this.connection = connection;
+            return true;
+        }
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+        private synchronized void setFuture(Future<?> future) {
+            this.future = future;
+            if (cancelled) future.cancel(false);
+        }
+        /** Cancels the request if it hasn't started, or disconnects it if it has */
+        synchronized void cancel() {
+            if (cancelled) return;
+            cancelled = true;
+            if (future != null) future.cancel(false);
+            if (connection != null) connection.disconnect();
+        }
+    }
+
+    /**
+     * Runs every request for an icon in parallel, then uses their results in order of priority.
+     * <p>
+     * Each result is handled as soon as it and every result before it are available, so a
+     * fallback which responds first is used as soon as the sources before it are known to have
+     * no icon. Once a source has a found or unchanged icon, every other request is cancelled.
+     */
+    static class Check {
+        private final List<SourceRequest> requests;
+        private final Function<Download, IconFetchStore.Result> onDownload;
+        private final Runnable onFinished;
+        // Index of the next request whose result should be handled
+        private int next = 0;
+        private boolean finished = false;
+
+        /**
+         * @param requests Requests in order of priority
+         * @param onDownload Handles a result, and returns its final result
+         *                   (which may differ, such as if the image was invalid)
+         * @param onFinished Called once, when the check is finished
+         */
+        Check(List<SourceRequest> requests, Function<Download, IconFetchStore.Result> onDownload,
+              Runnable onFinished) {
+            this.requests = requests;
+            this.onDownload = onDownload;
+            this.onFinished = onFinished;
+        }
+
+        /** Queues every request on the request lane, without waiting for any */
+        void start() {
+            if (requests.isEmpty()) {
+                synchronized (this) {
+                    finish();
+                }
+                return;
+            }
+            for (SourceRequest request : requests)
+                request.setFuture(IconScheduler.request(() -> {
+                    run(request);
+                    return null;
+                }));
+        }
+
+        private void run(SourceRequest request) {
+            if (request.isCancelled()) return;
+            Download download;
+            try {
+                download = request.task.apply(request);
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to request icon from " + request.source, e);
+                download = new Download(request.source, null, IconFetchStore.Result.ERROR);
+            }
+            complete(request, download);
+        }
+
+        private synchronized void complete(SourceRequest request, Download download) {
+            if (finished) return;
+            request.download = download;
+            while (next < requests.size()) {
+                final Download nextDownload = requests.get(next).download;
+                // Wait for a source of higher priority
+                if (nextDownload == null) return;
+                next++;
+                IconFetchStore.Result result;
+                try {
+                    result = onDownload.apply(nextDownload);
                 } catch (Exception e) {
-                    //noinspection CallToPrintStackTrace
-                    e.printStackTrace();
-                } finally {
-                    // Set the icon to now download if we either successfully downloaded it,
-                    // or the download tried and failed
-                    locks.remove(packageName);
+                    Log.w(TAG, "Failed to handle icon from " + nextDownload.url, e);
+                    result = IconFetchStore.Result.ERROR;
                 }
+                if (result == IconFetchStore.Result.FOUND
+                        || result == IconFetchStore.Result.UNCHANGED) break;
             }
-        });
+            finish();
+        }
+
+        private void finish() {
+            finished = true;
+            // Any sources still being requested are no longer needed
+            for (SourceRequest request : requests) request.cancel();
+            onFinished.run();
+        }
     }
 
+    /**
+     * Gets how long the last burst of icon checks took, from the first starting
+     * until none were left running. On a fresh install, this is the time to fill the icon cache.
+     * @return Duration in milliseconds, or 0 if no checks have finished
+     */
+    public static long getLastFillDurationMs() {
+        return lastFillDurationMs;
+    }
+    /** @return The total number of icon checks which have made requests */
+    public static int getCheckCount() {
+        return checkCount.get();
+    }
+
+    /**
+     * Sets the timeouts used for each icon request. Only tests change these, so they don't
+     * have to wait out the full timeouts.
+     * @param connectMs Timeout to connect to a server, in milliseconds
+     * @param readMs Timeout to wait for data once connected, in milliseconds
+     */
+    static void setTimeouts(int connectMs, int readMs) {
+        connectTimeoutMs = connectMs;
+        readTimeoutMs = readMs;
+    }
+
+    /**
+     * Opens a connection with the configured timeouts.
+     * Connections are kept alive and reused for later requests to the same host,
+     * as long as their response stream is fully read and closed.
+     */
+    static HttpURLConnection openConnection(String url) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(connectTimeoutMs);
+        connection.setReadTimeout(readTimeoutMs);
+        return connection;
+    }
 
     /**
      * Gets the package name as it should be used for download purposes,
@@ -159,39 +379,114 @@ public abstract class IconUpdater {
     }
 
     /**
-     * Downloads an icon from a given url and saves it using saveStream()
+     * Downloads an icon from a given url and saves it using saveBytes()
      * @return True if icon was downloaded and saved successfully
      */
     static boolean downloadIconFromUrl(String url, File iconFile) {
-        try (InputStream inputStream = new URL(url).openStream()) {
-            // Try to save
-            if (saveStream(inputStream, iconFile)) {
-                inputStream.close();
-                return true;
+        return save(null, request(IconFetchStore.Source.METADATA, url, null, false, null),
+                iconFile)
+                == IconFetchStore.Result.FOUND;
+    }
+
+    /** The response from requesting an icon from a single url */
+    static class Download {
+        final IconFetchStore.Source source;
+        @Nullable final String url;
+        IconFetchStore.Result result;
+        byte[] bytes;
+        String etag;
+        String lastModified;
+        long contentHash;
+        Download(IconFetchStore.Source source, @Nullable String url, IconFetchStore.Result result) {
+            this.source = source;
+            this.url = url;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Requests an icon from a given url, without saving it.
+     * <p>
+     * If there are validators from a previous download of the same url, and that image is
+     * still cached, the request is conditional. An unchanged image is then not downloaded again.
+     * @param previous Fetch state of the icon from before this attempt, or null
+     * @param cached True if the image from the previous download is still cached
+     * @param owner Request which may cancel this one by disconnecting it, or null
+     * @return A download with a result of FOUND if a new image was downloaded,
+     * UNCHANGED if the cached image is still current, MISSING if the url has no image,
+     * or ERROR if the url couldn't be reached
+     */
+    static Download request(IconFetchStore.Source source, String url,
+                            @Nullable IconFetchStore.State previous, boolean cached,
+                            @Nullable SourceRequest owner) {
+        final Download download = new Download(source, url, IconFetchStore.Result.ERROR);
+        final boolean conditional = cached && previous != null && url.equals(previous.url);
+        try {
+            final HttpURLConnection connection = openConnection(url);
+            if (owner != null && !owner.attach(connection)) return download;
+            if (conditional) {
+                if (previous.etag != null)
+                    connection.setRequestProperty("If-None-Match", previous.etag);
+                if (previous.lastModified != null)
+                    connection.setRequestProperty("If-Modified-Since", previous.lastModified);
+            }
+            final int code = connection.getResponseCode();
+            download.etag = connection.getHeaderField("ETag");
+            download.lastModified = connection.getHeaderField("Last-Modified");
+            if (code != HttpURLConnection.HTTP_OK) {
+                // Read any error body, so the connection may be reused
+                try (InputStream errorStream = connection.getErrorStream()) {
+                    if (errorStream != null) FileLib.readBytes(errorStream);
+                }
+                if (code == HttpURLConnection.HTTP_NOT_MODIFIED && conditional) {
+                    download.result = IconFetchStore.Result.UNCHANGED;
+                    download.contentHash = previous.contentHash;
+                    if (download.etag == null) download.etag = previous.etag;
+                    if (download.lastModified == null)
+                        download.lastModified = previous.lastModified;
+                }
+                else if (code < 500 && code != HttpURLConnection.HTTP_NOT_MODIFIED)
+                    download.result = IconFetchStore.Result.MISSING;
+                return download;
+            }
+            try (InputStream inputStream = connection.getInputStream()) {
+                download.bytes = FileLib.readBytes(inputStream);
             }
+            download.contentHash = HashLib.fingerprint(download.bytes);
+            // Some servers don't support validators, but still send the same image
+            download.result = conditional && previous.contentHash == download.contentHash
+                    ? IconFetchStore.Result.UNCHANGED : IconFetchStore.Result.FOUND;
         } catch (IOException ignored) {}
-        return false;
+        return download;
+    }
+
+    /**
+     * Saves a download if it has a new image, and records its validators in the fetch store
+     * @param key Key of the icon in the fetch store, or null to not record validators
+     * @return The download's result, or MISSING if it wasn't a valid image
+     */
+    private static IconFetchStore.Result save(@Nullable String key, Download download,
+                                              File iconFile) {
+        if (download.result == IconFetchStore.Result.FOUND
+                && !saveBytes(download.bytes, iconFile)) return IconFetchStore.Result.MISSING;
+        if (key != null && download.url != null
+                && (download.result == IconFetchStore.Result.FOUND
+                || download.result == IconFetchStore.Result.UNCHANGED))
+            getFetchStore().setValidators(key, download.url,
+                    download.etag, download.lastModified, download.contentHash);
+        return download.result;
     }
 
     /**
-     * Saves an input stream used to download a bitmap to an actual file, applying webp compression.
-     * @return True if the stream was different and has been saved
+     * Transcodes a downloaded bitmap and saves it to an actual file, applying webp compression.
+     * @return True if the data was a valid image and has been saved
      */
-    private static boolean saveStream(InputStream inputStream, File outputFile) {
+    private static boolean saveBytes(byte[] bytes, File outputFile) {
         try {
-            Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-            IconLoader.compressAndSaveBitmap(outputFile, bitmap);
-            return true;
+            return IconLoader.transcodeAndSave(outputFile, bytes);
         } catch (Exception e) {
-            //noinspection CallToPrintStackTrace
-            e.printStackTrace();
+            Log.e(TAG, "Failed to save icon to " + outputFile, e);
             return false;
-        } finally {
-            if (inputStream != null) {
-                try {
-                    inputStream.close();
-                } catch (IOException ignored) {}
-            }
         }
     }
-}
\ No newline at end of file
+}
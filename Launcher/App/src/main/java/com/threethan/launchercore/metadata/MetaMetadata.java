@@ -4,19 +4,31 @@ import android.util.Log;
 
 import androidx.annotation.Nullable;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+import com.threethan.launchercore.Core;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.lang.reflect.Type;
-import java.net.URL;
-import java.net.URLConnection;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** @noinspection unused*/
 public class MetaMetadata {
@@ -36,7 +48,7 @@ public class MetaMetadata {
         /**
          * Gets an image of a certain type, and saves it to a file
          * (synchronous, must be called off UI thread)
-         * @param type Image type ("landscape", "portrait", "square", "icon", or "hero")
+         * @param type Image type ("landscape" or "icon")
          * @param saveFile File to save the image
          * @return Try if icon was downloaded successfully
          */
@@ -44,41 +56,197 @@ public class MetaMetadata {
             if (!data.containsKey(type)) return false;
             return IconUpdater.downloadIconFromUrl(data.get(type), saveFile);
         }
+
+        /**
+         * @param type Image type ("landscape" or "icon")
+         * @return The url of the image of that type, or null if the app has none
+         */
+        @Nullable
+        public String getImageUrl(String type) {
+            return data.get(type);
+        }
     }
 
-    private static final Map<String, App> byPackage = new ConcurrentHashMap<>();
+    private static final String CATALOG_FILE = "/metametadata-catalog";
+    // Entries older than this are still used, but are refreshed in the background
+    private static final long FRESH_MS = 7 * 24 * 60 * 60 * 1000L;
+    // Fields kept in the catalog, everything else in the metadata is unused
+    private static final Set<String> CATALOG_KEYS
+            = new HashSet<>(Arrays.asList("name", "icon", "landscape"));
+
+    // Packages without metadata aren't requested again for this long
+    private static final long MISSING_TTL_MS = 24 * 60 * 60 * 1000L;
+    // Packages whose request failed aren't requested again for this long
+    private static final long ERROR_TTL_MS = 5 * 60 * 1000L;
+
+    private static MetadataCatalog catalog;
+    private static final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    private static final Map<String, CompletableFuture<App>> inFlight = new ConcurrentHashMap<>();
+    private static final Map<String, Long> retryAfterErrorMs = new ConcurrentHashMap<>();
+    private static final AtomicInteger networkCalls = new AtomicInteger();
+    private static final AtomicInteger callsAvoided = new AtomicInteger();
+
+    /** @return The persistent catalog of metadata which has been fetched */
+    public static synchronized MetadataCatalog getCatalog() {
+        if (catalog == null) catalog = new MetadataCatalog(
+                new File(Core.context().getApplicationInfo().dataDir + CATALOG_FILE));
+        return catalog;
+    }
 
     /**
      * Gets app metadata for a given package (synchronous, must be called off UI thread)
+     * <p>
+     * Metadata is read from the local catalog if present, so doesn't need the network.
+     * Stale metadata is still returned, but refreshed in the background for next time.
+     * Packages known to have no metadata aren't requested again until MISSING_TTL_MS passes,
+     * and concurrent callers for the same package share a single request.
      * @param packageName Package name of the app
      * @return metadata for the app
      */
     @Nullable public static App getForPackage(String packageName) {
-        if (byPackage.containsKey(packageName))
-            return byPackage.get(packageName);
+        final MetadataCatalog catalog = getCatalog();
+        final long now = System.currentTimeMillis();
+        final MetadataCatalog.Entry entry = catalog.get(packageName);
+        if (entry != null && entry.data != null) {
+            if (now - entry.fetchedAtMs > FRESH_MS && refreshing.add(packageName))
+                IconScheduler.fetch(() -> {
+                    try {
+                        fetchShared(packageName);
+                    } finally {
+                        refreshing.remove(packageName);
+                    }
+                });
+            callsAvoided.incrementAndGet();
+            return new App(entry.data);
+        }
+        if (entry != null && now - entry.fetchedAtMs < MISSING_TTL_MS) {
+            callsAvoided.incrementAndGet();
+            return null;
+        }
+        final Long retryAtMs = retryAfterErrorMs.get(packageName);
+        if (retryAtMs != null && now < retryAtMs) {
+            callsAvoided.incrementAndGet();
+            return null;
+        }
+        return fetchShared(packageName);
+    }
 
+    /**
+     * Gets app metadata for many packages at once (synchronous, must be called off UI thread)
+     * <p>
+     * Each package is resolved as by {@link #getForPackage}, but packages which need
+     * a request are requested in parallel on the bounded request lane.
+     * @param packageNames Package names of the apps
+     * @return Metadata by package name, only for packages which have any
+     */
+    public static Map<String, App> getForPackages(Collection<String> packageNames) {
+        final Map<String, Future<App>> requests = new LinkedHashMap<>();
+        for (String packageName : packageNames)
+            requests.put(packageName, IconScheduler.request(() -> getForPackage(packageName)));
+        final Map<String, App> apps = new LinkedHashMap<>();
         try {
-            URL url = new URL(String.format(COMMON_URL, packageName));
-            URLConnection request = url.openConnection();
-            request.connect();
+            for (Map.Entry<String, Future<App>> request : requests.entrySet()) {
+                try {
+                    final App app = request.getValue().get();
+                    if (app != null) apps.put(request.getKey(), app);
+                } catch (ExecutionException e) {
+                    Log.w("MetaMetadata", "Failed to get "+request.getKey(), e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Future<App> request : requests.values()) request.cancel(false);
+        }
+        return apps;
+    }
+
+    /** Fetches a package's metadata, or waits for the request already in progress for it */
+    @Nullable private static App fetchShared(String packageName) {
+        final CompletableFuture<App> request = new CompletableFuture<>();
+        final CompletableFuture<App> existing = inFlight.putIfAbsent(packageName, request);
+        if (existing != null) {
+            callsAvoided.incrementAndGet();
+            return existing.join();
+        }
+        App app = null;
+        try {
+            app = fetchForPackage(packageName);
+            return app;
+        } finally {
+            inFlight.remove(packageName, request);
+            request.complete(app);
+        }
+    }
+
+    /**
+     * Fetches a single package's metadata, and adds it to the catalog.
+     * If the package has none, or its metadata is invalid, that is recorded in the catalog.
+     */
+    @Nullable private static App fetchForPackage(String packageName) {
+        networkCalls.incrementAndGet();
+        try {
+            HttpURLConnection request = IconUpdater.openConnection(
+                    String.format(COMMON_URL, packageName));
 
-            Type type = new TypeToken<Map<String, String>>(){}.getType();
             Map<String, String> data;
-            try {
-                data = new Gson()
-                        .fromJson(new InputStreamReader((InputStream) request.getContent()), type);
+            // Closing the stream allows the connection to be reused
+            try (InputStream inputStream = request.getInputStream();
+                 JsonReader reader = new JsonReader(
+                         new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+                data = readFields(reader);
             } catch (FileNotFoundException e) {
+                getCatalog().putMissing(packageName);
+                return null;
+            } catch (MalformedJsonException | EOFException | IllegalStateException e) {
+                Log.e("MetaMetadata", "Invalid metadata for "+packageName, e);
+                getCatalog().putMissing(packageName);
                 return null;
-            } catch (Exception e) {
-                Log.e("MetaMetadata", "Gson error for "+packageName, e);
+            } catch (IOException e) {
+                Log.w("MetaMetadata", "Failed to request "+packageName, e);
+                retryAfterErrorMs.put(packageName, System.currentTimeMillis() + ERROR_TTL_MS);
+                return null;
+            }
+            if (data.isEmpty()) {
+                getCatalog().putMissing(packageName);
                 return null;
             }
 
-            App app = new App(data);
-            byPackage.put(packageName, app);
-            return app;
+            retryAfterErrorMs.remove(packageName);
+            return new App(getCatalog().put(packageName, data, CATALOG_KEYS).data);
         } catch (IOException e) {
+            retryAfterErrorMs.put(packageName, System.currentTimeMillis() + ERROR_TTL_MS);
             return null;
         }
     }
+
+    /** @return The number of times metadata was requested from the network */
+    public static int getNetworkCallCount() {
+        return networkCalls.get();
+    }
+    /**
+     * @return The number of network requests avoided, by using the catalog, a recorded miss,
+     * or a request already in progress
+     */
+    public static int getCallsAvoidedCount() {
+        return callsAvoided.get();
+    }
+
+    /**
+     * Reads a single app's metadata object, keeping only the fields which are used.
+     * Everything else is skipped without being parsed into objects.
+     * @param reader Reader positioned at the start of the object
+     * @return The used string fields of the object
+     */
+    static Map<String, String> readFields(JsonReader reader) throws IOException {
+        final Map<String, String> data = new HashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            if (CATALOG_KEYS.contains(name) && reader.peek() == JsonToken.STRING)
+                data.put(name, reader.nextString());
+            else reader.skipValue();
+        }
+        reader.endObject();
+        return data;
+    }
 }
@@ -0,0 +1,216 @@
+package com.threethan.launchercore.metadata;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.threethan.launchercore.lib.FileLib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A local, persistent catalog of app metadata from the MetaMetadata repo, by package name.
+ * <p>
+ * Only the fields used by the launcher are kept, in a compact binary file which is loaded
+ * lazily the first time the catalog is queried. Each entry records when it was fetched,
+ * so stale entries can be refreshed while still being used in the meantime.
+ * <p>
+ * Once loaded, entries are read without locking. Changes are written to disk in the background,
+ * coalescing bursts of changes into one write, which is made from a copy of the entries
+ * so that it doesn't block reads or further changes.
+ */
+public class MetadataCatalog {
+    private static final String TAG = "MetadataCatalog";
+    private static final int FILE_MAGIC = 0x4C4C4D43; // "LLMC"
+    private static final int FILE_VERSION = 2;
+
+    /** A single app's metadata, or a record that the app has none */
+    public static class Entry {
+        /** Metadata fields, or null if the app has no metadata */
+        @Nullable public final Map<String, String> data;
+        public final long fetchedAtMs;
+        Entry(@Nullable Map<String, String> data, long fetchedAtMs) {
+            this.data = data;
+            this.fetchedAtMs = fetchedAtMs;
+        }
+        /** @return True if this records that the app has no metadata */
+        public boolean isMissing() {
+            return data == null;
+        }
+    }
+
+    private final File file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // Held while writing the file, so saves (and clearing) happen one at a time, in order
+    private final Object fileLock = new Object();
+    private volatile boolean loaded = false;
+    private boolean saveQueued = false;
+
+    /** @param file File in which to persist the catalog */
+    public MetadataCatalog(File file) {
+        this.file = file;
+    }
+
+    /** @return The metadata for a package, or null if it's not in the catalog */
+    @Nullable
+    public Entry get(String packageName) {
+        load();
+        return entries.get(packageName);
+    }
+
+    /**
+     * Adds or replaces the metadata for a package
+     * @param packageName Package name of the app
+     * @param data Metadata fields, of which only those in keys are kept
+     * @param keys Fields to keep
+     * @return The new entry
+     */
+    public Entry put(String packageName, Map<String, String> data, Iterable<String> keys) {
+        load();
+        final Entry entry = new Entry(filter(data, keys), System.currentTimeMillis());
+        entries.put(packageName, entry);
+        queueSave();
+        return entry;
+    }
+
+    /**
+     * Records that a package has no metadata, replacing any it had before
+     * @param packageName Package name of the app
+     */
+    public void putMissing(String packageName) {
+        load();
+        entries.put(packageName, new Entry(null, System.currentTimeMillis()));
+        queueSave();
+    }
+
+    /** @return The number of packages in the catalog */
+    public int size() {
+        load();
+        return entries.size();
+    }
+
+    /** Forgets every package, and deletes the persisted catalog */
+    public void clear() {
+        synchronized (fileLock) {
+            synchronized (this) {
+                loaded = true;
+                entries.clear();
+            }
+            FileLib.delete(file);
+        }
+    }
+
+    /** Writes the catalog to disk now */
+    public void save() {
+        synchronized (fileLock) {
+            final Map<String, Entry> snapshot;
+            synchronized (this) {
+                saveQueued = false;
+                snapshot = new HashMap<>(entries);
+            }
+            write(snapshot);
+        }
+    }
+
+    private void write(Map<String, Entry> snapshot) {
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> entry : snapshot.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeLong(entry.getValue().fetchedAtMs);
+                final Map<String, String> data = entry.getValue().data;
+                // Missing entries are written with a field count of -1
+                out.writeShort(data == null ? -1 : data.size());
+                if (data != null) for (Map.Entry<String, String> field : data.entrySet()) {
+                    writeString(out, field.getKey());
+                    writeString(out, field.getValue());
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save", e);
+            FileLib.delete(tmpFile);
+            return;
+        }
+        if (!tmpFile.renameTo(file)) Log.e(TAG, "Failed to replace " + file);
+    }
+
+    private synchronized void queueSave() {
+        if (saveQueued) return;
+        saveQueued = true;
+        IconScheduler.fetch(this::save);
+    }
+
+    /** Loads the catalog from disk the first time it's used, after which this never locks */
+    private void load() {
+        if (loaded) return;
+        synchronized (this) {
+            if (loaded) return;
+            read();
+            // Only set once every entry has been read, since reads after this don't lock
+            loaded = true;
+        }
+    }
+
+    private void read() {
+        if (!file.exists()) return;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                Log.w(TAG, "Invalid header, ignoring saved catalog");
+                return;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String packageName = readString(in);
+                final long fetchedAtMs = in.readLong();
+                final int fieldCount = in.readShort();
+                if (fieldCount < 0) {
+                    entries.put(packageName, new Entry(null, fetchedAtMs));
+                    continue;
+                }
+                final Map<String, String> data = new HashMap<>(fieldCount);
+                for (int j = 0; j < fieldCount; j++) data.put(readString(in), readString(in));
+                entries.put(packageName, new Entry(Collections.unmodifiableMap(data), fetchedAtMs));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to load, some metadata may be fetched again", e);
+        }
+    }
+
+    private static Map<String, String> filter(Map<String, String> data, Iterable<String> keys) {
+        final Map<String, String> filtered = new HashMap<>();
+        for (String key : keys) {
+            final String value = data.get(key);
+            if (value != null) filtered.put(key, value);
+        }
+        return Collections.unmodifiableMap(filtered);
+    }
+
+    // Unlike writeUTF, these aren't limited to 64KB
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    private static String readString(DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,115 @@
+package com.threethan.launcher.activity.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.threethan.launchercore.Benchmark;
+import com.threethan.launchercore.lib.StringLib;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+
+/**
+ * Measures sorting and matching apps using the labels' precomputed forms from LabelIndex,
+ * compared with computing them from each label every time, as sorting and searching used to.
+ */
+public class LabelIndexBenchmark {
+    private static final int APP_COUNT = 1000;
+    private static final String[] WORDS = {"Beat", "Saber", "Quest", "Café", "★ Super", "Hot",
+            "Gorilla", "Tag", "Walkabout", "Mini", "Golf", "Pistol", "Whip", "Résumé", "VR"};
+
+    private final List<String> packageNames = new ArrayList<>();
+    private final List<String> labels = new ArrayList<>();
+    private final Map<String, String> labelByPackage = new HashMap<>();
+
+    @Before
+    public void indexLabels() {
+        LabelIndex.clear();
+        final Random random = new Random(0);
+        for (int i = 0; i < APP_COUNT; i++) {
+            final String label = WORDS[random.nextInt(WORDS.length)] + " "
+                    + WORDS[random.nextInt(WORDS.length)] + " " + i;
+            packageNames.add("com.example.app" + i);
+            labels.add(label);
+            labelByPackage.put(packageNames.get(i), label);
+            LabelIndex.put(packageNames.get(i), label, false);
+        }
+    }
+
+    @After
+    public void clearLabels() {
+        LabelIndex.clear();
+    }
+
+    private static LabelIndex.Entry entry(String packageName) {
+        return Objects.requireNonNull(LabelIndex.get(packageName));
+    }
+
+    @Test
+    public void unchangedLabelKeepsEntry() {
+        final int version = LabelIndex.getVersion();
+        final LabelIndex.Entry entry = entry(packageNames.get(0));
+        assertSame(entry, LabelIndex.put(packageNames.get(0), labels.get(0), false));
+        assertEquals(version, LabelIndex.getVersion());
+        assertEquals(StringLib.forSearch(labels.get(0)), entry.searchKey);
+
+        LabelIndex.remove(packageNames.get(0));
+        assertEquals(version + 1, LabelIndex.getVersion());
+        assertEquals(APP_COUNT - 1, LabelIndex.size());
+    }
+
+    @Test
+    public void sortApps() throws Exception {
+        Benchmark.assumeEnabled();
+        final double computed = Benchmark.measure("Sort " + APP_COUNT + " apps, computing keys",
+                5, iteration -> {
+            final List<String> sorted = new ArrayList<>(packageNames);
+            sorted.sort(Comparator.comparing(packageName ->
+                    StringLib.forSort(labelByPackage.get(packageName))));
+            return sorted;
+        });
+        final double indexed = Benchmark.measure("Sort " + APP_COUNT + " apps, by indexed keys",
+                5, iteration -> {
+            final List<String> sorted = new ArrayList<>(packageNames);
+            sorted.sort(Comparator.comparing(packageName -> entry(packageName).sortKey));
+            return sorted;
+        });
+        Benchmark.compare("Sort speedup", computed, indexed);
+    }
+
+    @Test
+    public void matchApps() throws Exception {
+        Benchmark.assumeEnabled();
+        final String query = StringLib.forSearch("cafe");
+        final double computed = Benchmark.measure("Match " + APP_COUNT + " apps, computing keys",
+                20, iteration -> {
+            int count = 0;
+            for (String label : labels) if (StringLib.forSearch(label).contains(query)) count++;
+            return count;
+        });
+        final double indexed = Benchmark.measure("Match " + APP_COUNT + " apps, by indexed keys",
+                20, iteration -> {
+            int count = 0;
+            for (String packageName : packageNames)
+                if (entry(packageName).searchKey.contains(query)) count++;
+            return count;
+        });
+        Benchmark.compare("Match speedup", computed, indexed);
+    }
+
+    @Test
+    public void lookUpLabels() throws Exception {
+        Benchmark.assumeEnabled();
+        Benchmark.measure("Look up an indexed label", APP_COUNT * 100,
+                iteration -> entry(packageNames.get(iteration % APP_COUNT)).label);
+    }
+}
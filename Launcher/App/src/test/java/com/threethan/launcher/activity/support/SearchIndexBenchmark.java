@@ -0,0 +1,188 @@
+package com.threethan.launcher.activity.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.pm.ApplicationInfo;
+
+import com.threethan.launchercore.Benchmark;
+import com.threethan.launchercore.lib.StringLib;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Measures the latency of each keystroke of a search through SearchIndex, for 100, 1k and 10k
+ * synthetic apps, compared with sorting and matching every label as filterBy used to.
+ * <p>
+ * Typing a query refines the previous query's matches, while deleting a character
+ * checks every entry again, so both are measured. Ranked searches, which also score initials
+ * and typos, are measured against the budget of a single frame.
+ */
+public class SearchIndexBenchmark {
+    private static final int[] APP_COUNTS = {100, 1000, 10000};
+    private static final String[] WORDS = {"beat", "saber", "quest", "super", "hot", "gorilla",
+            "tag", "walkabout", "mini", "golf", "pistol", "whip", "climb", "moss", "red", "matter",
+            "eleven", "table", "tennis", "blade", "sorcery", "population", "one", "rec", "room"};
+    private static final String GROUP = "Apps";
+    private static final Set<String> GROUPS = Collections.singleton(GROUP);
+    // Typed one character at a time, so each query extends the one before
+    private static final String[] TYPED = {"g", "go", "gol", "golf", "golf m", "golf mo"};
+    // Typed with a typo at the end, which only ranked searches can match
+    private static final String[] TYPED_TYPO
+            = {"w", "wa", "wal", "walk", "walka", "walkab", "walkabu", "walkabuo", "walkabuot"};
+    private static final double FRAME_NS = 1e9 / 60;
+
+    /** A synthetic set of apps, in display order */
+    static class Apps {
+        final List<ApplicationInfo> apps = new ArrayList<>();
+        final Map<String, String> labels = new HashMap<>();
+        final Map<String, String> groupMap = new HashMap<>();
+        final SearchIndex.Entry[] entries;
+
+        Apps(int count, long seed) {
+            final Random random = new Random(seed);
+            for (int i = 0; i < count; i++) {
+                final ApplicationInfo app = new ApplicationInfo();
+                // Package tokens start with a digit, so they don't change which labels match
+                app.packageName = "com.example." + i + "app";
+                final String label = capitalize(WORDS[random.nextInt(WORDS.length)]) + " "
+                        + capitalize(WORDS[random.nextInt(WORDS.length)])
+                        + (random.nextBoolean() ? " " + WORDS[random.nextInt(WORDS.length)] : "");
+                apps.add(app);
+                labels.put(app.packageName, label);
+                groupMap.put(app.packageName, GROUP);
+            }
+            apps.sort(Comparator.comparing(app -> StringLib.forSort(label(app))));
+            entries = new SearchIndex.Entry[count];
+            for (int i = 0; i < count; i++) entries[i] = new SearchIndex.Entry(apps.get(i),
+                    StringLib.forSearch(label(apps.get(i))), 0);
+        }
+
+        String label(ApplicationInfo app) {
+            return Objects.requireNonNull(labels.get(app.packageName));
+        }
+
+        /** Adds an app which was last launched at the given time */
+        SearchIndex.Entry entry(String label, long lastLaunchMs) {
+            final ApplicationInfo app = new ApplicationInfo();
+            app.packageName = "com.example." + labels.size() + "app";
+            labels.put(app.packageName, label);
+            groupMap.put(app.packageName, GROUP);
+            return new SearchIndex.Entry(app, StringLib.forSearch(label), lastLaunchMs);
+        }
+
+        /** Searches as filterBy used to: sorting every app, then matching every label */
+        List<ApplicationInfo> filter(String text) {
+            final List<ApplicationInfo> items = new ArrayList<>(apps);
+            items.sort(Comparator.comparing(app -> StringLib.forSort(label(app))));
+            items.removeIf(app -> !StringLib.forSort(label(app)).contains(StringLib.forSort(text)));
+            items.removeIf(app -> !GROUP.equals(groupMap.get(app.packageName)));
+            return items;
+        }
+
+        List<ApplicationInfo> search(SearchIndex index, String text, boolean ranked) {
+            return index.search(text, GROUPS, groupMap, ranked, () -> false);
+        }
+
+        private static String capitalize(String word) {
+            return Character.toUpperCase(word.charAt(0)) + word.substring(1);
+        }
+    }
+
+    @Test
+    public void resultsMatchFilter() {
+        final Apps apps = new Apps(1000, 0);
+        final SearchIndex index = SearchIndex.of(apps.entries);
+        for (String query : TYPED)
+            assertEquals(apps.filter(query), apps.search(index, query, false));
+        // Typing a character only checks the previous query's matches
+        assertTrue(index.getLastScanCount() < apps.entries.length);
+        // Deleting characters must check everything again
+        for (int i = TYPED.length - 1; i >= 0; i--)
+            assertEquals(apps.filter(TYPED[i]), apps.search(index, TYPED[i], false));
+        assertEquals(apps.entries.length, index.getLastScanCount());
+    }
+
+    @Test
+    public void keystrokes() throws Exception {
+        Benchmark.assumeEnabled();
+        for (int count : APP_COUNTS) {
+            final Apps apps = new Apps(count, count);
+            final int iterations
+                    = Math.max(TYPED.length, 60_000 / count / TYPED.length * TYPED.length);
+            final double filtered = Benchmark.measure("Keystroke by filtering " + count + " apps",
+                    Math.max(TYPED.length, iterations / 10),
+                    iteration -> apps.filter(TYPED[iteration % TYPED.length]));
+            final SearchIndex index = SearchIndex.of(apps.entries);
+            final double typed = Benchmark.measure("Keystroke typed, indexing " + count + " apps",
+                    iterations, iteration -> apps.search(index,
+                            TYPED[iteration % TYPED.length], false));
+            final double deleted = Benchmark.measure(
+                    "Keystroke deleted, indexing " + count + " apps", iterations,
+                    iteration -> apps.search(index,
+                            TYPED[TYPED.length - 1 - iteration % TYPED.length], false));
+            Benchmark.compare("  typing speedup", filtered, typed);
+            Benchmark.compare("  deleting speedup", filtered, deleted);
+        }
+    }
+
+    @Test
+    public void rankedOrder() {
+        final Apps apps = new Apps(0, 0);
+        final long now = System.currentTimeMillis();
+        final SearchIndex.Entry beatSaber = apps.entry("Beat Saber", 0);
+        final SearchIndex.Entry saber = apps.entry("Saber", 0);
+        final SearchIndex.Entry sabertooth = apps.entry("Sabertooth", 0);
+        final SearchIndex.Entry bestSabers = apps.entry("Best Sabers", 0);
+        final SearchIndex.Entry lightSaber = apps.entry("Light Saber", now);
+        final SearchIndex.Entry oldSaber = apps.entry("Old Saber", now - 86_400_000L * 20);
+        final SearchIndex.Entry bsides = apps.entry("BSides", 0);
+        final SearchIndex.Entry pistolWhip = apps.entry("Pistol Whip", 0);
+        final SearchIndex index = SearchIndex.of(new SearchIndex.Entry[]{
+                beatSaber, bestSabers, bsides, lightSaber, oldSaber, pistolWhip,
+                saber, sabertooth});
+
+        // Exact, then prefix, then later words (more recently launched first, else in order)
+        assertEquals(List.of(saber.app, sabertooth.app, lightSaber.app, oldSaber.app,
+                beatSaber.app, bestSabers.app), apps.search(index, "saber", true));
+        // Initials rank below prefixes
+        assertEquals(List.of(bsides.app, beatSaber.app, bestSabers.app),
+                apps.search(index, "bs", true));
+        // A typo still matches best, but only in a ranked search
+        assertEquals(beatSaber.app, apps.search(index, "beat sabre", true).get(0));
+        assertEquals(List.of(), apps.search(index, "beat sabre", false));
+    }
+
+    @Test
+    public void rankedKeystrokes() throws Exception {
+        Benchmark.assumeEnabled();
+        for (int count : APP_COUNTS) {
+            final Apps apps = new Apps(count, count);
+            final SearchIndex index = SearchIndex.of(apps.entries);
+            final int iterations
+                    = Math.max(TYPED_TYPO.length, 20_000 / count * TYPED_TYPO.length);
+            final double unranked = Benchmark.measure(
+                    "Keystroke unranked, indexing " + count + " apps", iterations,
+                    iteration -> apps.search(index, TYPED_TYPO[iteration % TYPED_TYPO.length],
+                            false));
+            final double ranked = Benchmark.measure(
+                    "Keystroke ranked, indexing " + count + " apps", iterations,
+                    iteration -> apps.search(index, TYPED_TYPO[iteration % TYPED_TYPO.length],
+                            true));
+            Benchmark.compare("  ranking cost", ranked, unranked);
+            Benchmark.compare("  keystrokes per frame", FRAME_NS, ranked);
+            // Generous, so it holds on slow machines, but catches scoring going quadratic
+            if (count == 1000) assertTrue(ranked < FRAME_NS);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.threethan.launchercore;
+
+import org.junit.Assume;
+
+import java.util.Locale;
+
+/**
+ * A minimal harness for measuring the speed of code in JVM unit tests.
+ * <p>
+ * Each measurement is warmed up, then timed over several rounds, of which the fastest is
+ * reported, to reduce noise from the JIT and garbage collection. Results are printed to
+ * standard output (shown in the test report) rather than asserted, since they depend on the
+ * machine running the tests. They're only useful to compare the approaches measured together,
+ * a headset will be slower across the board.
+ * <p>
+ * Measurements are skipped unless the benchmark system property is set, so normal test runs
+ * only run the checks of results alongside them. To run just the benchmarks, measuring:
+ * <pre>./gradlew :App:testDebugUnitTest --tests '*Benchmark' -Pbenchmark</pre>
+ */
+public abstract class Benchmark {
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+
+    /** An operation to measure, which returns a value so its work can't be optimized away */
+    public interface Operation {
+        Object run(int iteration) throws Exception;
+    }
+
+    /** True if measurements should run, which is set by passing -Pbenchmark to gradle */
+    public static final boolean ENABLED = Boolean.getBoolean("benchmark");
+
+    /** Skips the calling test unless measurements should run */
+    public static void assumeEnabled() {
+        Assume.assumeTrue("Benchmarks only run with -Pbenchmark", ENABLED);
+    }
+
+    @SuppressWarnings({"unused", "FieldCanBeLocal"})
+    private static volatile Object sink;
+
+    /**
+     * Measures an operation
+     * @param name Name of the measurement, to print
+     * @param iterations Number of times to run the operation in each round
+     * @param operation Operation to measure
+     * @return The fastest average time per operation, in nanoseconds
+     */
+    public static double measure(String name, int iterations, Operation operation)
+            throws Exception {
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            final long startNs = System.nanoTime();
+            for (int i = 0; i < iterations; i++) sink = operation.run(i);
+            final double nsPerOp = (System.nanoTime() - startNs) / (double) iterations;
+            if (round >= WARMUP_ROUNDS) best = Math.min(best, nsPerOp);
+        }
+        report(name, best);
+        return best;
+    }
+
+    /**
+     * Prints a measurement
+     * @param name Name of the measurement
+     * @param nsPerOp Average time per operation, in nanoseconds
+     */
+    public static void report(String name, double nsPerOp) {
+        System.out.printf(Locale.US, "%-56s %,14.1f ns/op%n", name, nsPerOp);
+    }
+
+    /** Prints the ratio between two measurements */
+    public static void compare(String name, double baselineNs, double improvedNs) {
+        System.out.printf(Locale.US, "%-56s %14.1fx%n", name, baselineNs / improvedNs);
+    }
+}
@@ -0,0 +1,92 @@
+package com.threethan.launchercore.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.threethan.launchercore.Benchmark;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Measures fingerprinting icons, and comparing icons by fingerprint on bind,
+ * compared with sampling their pixels as ImageLib.isIdenticalFast used to.
+ * <p>
+ * Bitmaps can't be created in a JVM test, so pixel sampling is measured on plain arrays.
+ * That excludes the JNI call which each Bitmap.getPixel made, so on a device the old
+ * comparison is considerably slower than measured here.
+ */
+public class HashLibBenchmark {
+    private static final int ICON_SIZE = 256;
+    private static final int SAMPLES = 128;
+
+    private static byte[] randomBytes(Random random, int length) {
+        final byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /** The sampling done by the old ImageLib.isIdenticalFast, on arrays of pixels */
+    private static boolean isIdenticalBySampling(int[] a, int[] b, int w, int h) {
+        final float dx = (w * 5.1F / (SAMPLES + 1));
+        final float dy = (h * 6.9F / (SAMPLES + 1));
+        for (int i = 0; i < SAMPLES; i++) {
+            final int y = (int) (i * dy) % h;
+            final int x = (int) ((((int) (i * dy / h)) + dx * i) % w);
+            if (a[y * w + x] != b[y * w + x]) return false;
+        }
+        return true;
+    }
+
+    @Test
+    public void fingerprintsDiffer() {
+        final Random random = new Random(0);
+        final byte[] bytes = randomBytes(random, 16 * 1024);
+        final long fingerprint = HashLib.fingerprint(bytes);
+        assertEquals(fingerprint, HashLib.fingerprint(ByteBuffer.wrap(bytes)));
+        // Every single byte change should change the fingerprint
+        final Set<Long> fingerprints = new HashSet<>();
+        fingerprints.add(fingerprint);
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i]++;
+            assertTrue(fingerprints.add(HashLib.fingerprint(bytes)));
+            bytes[i]--;
+        }
+        assertNotEquals(0, HashLib.fingerprint(new byte[0]));
+    }
+
+    @Test
+    public void fingerprintEncodedIcon() throws Exception {
+        Benchmark.assumeEnabled();
+        final Random random = new Random(0);
+        for (int kb : new int[]{4, 16, 64}) {
+            final ByteBuffer buffer = ByteBuffer.wrap(randomBytes(random, kb * 1024));
+            final double ns = Benchmark.measure("Fingerprint a " + kb + "KB encoded icon",
+                    2000, iteration -> HashLib.fingerprint(buffer));
+            Benchmark.report("  per MB", ns * 1024 / kb);
+        }
+    }
+
+    @Test
+    public void compareOnBind() throws Exception {
+        Benchmark.assumeEnabled();
+        final Random random = new Random(0);
+        final int[] pixels = new int[ICON_SIZE * ICON_SIZE];
+        for (int i = 0; i < pixels.length; i++) pixels[i] = random.nextInt();
+        final int[] same = pixels.clone();
+        // Identical images are the slow case for sampling, since every sample is checked
+        final double sampled = Benchmark.measure("Compare identical icons by 128 samples",
+                20_000, iteration -> isIdenticalBySampling(pixels, same, ICON_SIZE, ICON_SIZE));
+
+        final long[] fingerprints = {HashLib.fingerprint(pixels.length, 1), 0};
+        fingerprints[1] = fingerprints[0];
+        final double fingerprinted = Benchmark.measure("Compare identical icons by fingerprint",
+                20_000, iteration -> fingerprints[0] == fingerprints[iteration & 1]);
+        Benchmark.compare("Bind comparison speedup (excluding JNI)", sampled, fingerprinted);
+    }
+}
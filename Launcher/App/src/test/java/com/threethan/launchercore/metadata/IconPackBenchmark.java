@@ -0,0 +1,132 @@
+package com.threethan.launchercore.metadata;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import com.threethan.launchercore.Benchmark;
+import com.threethan.launchercore.lib.FileLib;
+import com.threethan.launchercore.lib.HashLib;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Measures reading cached icons from the icon pack, compared with one file per icon.
+ * <p>
+ * Cold reads open the storage first: a new pack (reading and mapping its index), or each file.
+ * Warm reads use a pack which is already open. The OS page cache can't be dropped from a test,
+ * so cold reads here only measure the per-file open/stat/read overhead, not slow flash.
+ * Decoding is the same either way, so isn't measured.
+ */
+public class IconPackBenchmark {
+    private static final int ICON_COUNT = 300;
+    // About the size of a webp icon
+    private static final int ICON_BYTES = 12 * 1024;
+
+    private File folder;
+    private File looseFolder;
+    private File packFolder;
+    private byte[][] icons;
+
+    @Before
+    public void writeIcons() throws IOException {
+        folder = Files.createTempDirectory("icon-pack-benchmark").toFile();
+        looseFolder = new File(folder, "loose");
+        packFolder = new File(folder, "pack");
+        //noinspection ResultOfMethodCallIgnored
+        looseFolder.mkdirs();
+
+        final Random random = new Random(0);
+        final IconPack pack = new IconPack(packFolder);
+        icons = new byte[ICON_COUNT][];
+        for (int i = 0; i < ICON_COUNT; i++) {
+            icons[i] = new byte[ICON_BYTES / 2 + random.nextInt(ICON_BYTES)];
+            random.nextBytes(icons[i]);
+            Files.write(new File(looseFolder, key(i)).toPath(), icons[i]);
+            pack.put(key(i), icons[i]);
+        }
+        // Index everything now, rather than in the background, so new packs can read it
+        pack.flush();
+    }
+
+    @After
+    public void deleteIcons() {
+        for (File parent : new File[]{looseFolder, packFolder}) {
+            final File[] files = parent.listFiles();
+            if (files != null) for (File file : files) FileLib.delete(file);
+            FileLib.delete(parent);
+        }
+        FileLib.delete(folder);
+    }
+
+    private static String key(int i) {
+        return "com.example.app" + i + ".webp";
+    }
+
+    private static byte[] readPacked(IconPack pack, int i) {
+        final ByteBuffer buffer = pack.get(key(i));
+        assertNotNull(buffer);
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private byte[] readLoose(int i) throws IOException {
+        try (InputStream in = new FileInputStream(new File(looseFolder, key(i)))) {
+            return FileLib.readBytes(in);
+        }
+    }
+
+    @Test
+    public void readsMatch() throws IOException {
+        final IconPack pack = new IconPack(packFolder);
+        for (int i = 0; i < ICON_COUNT; i++) {
+            assertArrayEquals(icons[i], readPacked(pack, i));
+            assertArrayEquals(icons[i], readLoose(i));
+            // Fingerprints are read back from the index, rather than hashed again
+            final IconPack.Image image = pack.getImage(key(i));
+            assertNotNull(image);
+            assertEquals(HashLib.fingerprint(icons[i]), image.fingerprint);
+        }
+    }
+
+    @Test
+    public void coldReads() throws Exception {
+        Benchmark.assumeEnabled();
+        final double loose = Benchmark.measure("Cold read of " + ICON_COUNT + " loose files",
+                1, iteration -> {
+            long total = 0;
+            for (int i = 0; i < ICON_COUNT; i++) total += readLoose(i).length;
+            return total;
+        });
+        final double packed = Benchmark.measure("Cold read of " + ICON_COUNT + " packed icons",
+                1, iteration -> {
+            final IconPack pack = new IconPack(packFolder);
+            long total = 0;
+            for (int i = 0; i < ICON_COUNT; i++) total += readPacked(pack, i).length;
+            return total;
+        });
+        Benchmark.compare("Cold read speedup", loose, packed);
+    }
+
+    @Test
+    public void warmReads() throws Exception {
+        Benchmark.assumeEnabled();
+        final double loose = Benchmark.measure("Warm read of a loose file", ICON_COUNT * 10,
+                iteration -> readLoose(iteration % ICON_COUNT));
+        final IconPack pack = new IconPack(packFolder);
+        final double packed = Benchmark.measure("Warm read of a packed icon", ICON_COUNT * 10,
+                iteration -> readPacked(pack, iteration % ICON_COUNT));
+        Benchmark.compare("Warm read speedup", loose, packed);
+    }
+}
@@ -0,0 +1,276 @@
+package com.threethan.launchercore.metadata;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests icon requests against a local http server, and the order in which
+ * the results of a check's sources are used.
+ */
+public class IconUpdaterTest {
+    private static final byte[] IMAGE = "not really an image".getBytes(StandardCharsets.UTF_8);
+    private HttpServer server;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+        IconUpdater.setTimeouts(IconUpdater.DEFAULT_CONNECT_TIMEOUT_MS,
+                IconUpdater.DEFAULT_READ_TIMEOUT_MS);
+    }
+
+    private String serve(String path, HttpHandler handler) {
+        server.createContext(path, handler);
+        return "http://localhost:" + server.getAddress().getPort() + path;
+    }
+
+    private static void respond(HttpExchange exchange, int code, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(code, body == null ? -1 : body.length);
+        if (body != null) try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+        exchange.close();
+    }
+
+    private static IconFetchStore.State previousOf(IconUpdater.Download download) {
+        final IconFetchStore.State state = new IconFetchStore.State();
+        state.url = download.url;
+        state.etag = download.etag;
+        state.lastModified = download.lastModified;
+        state.contentHash = download.contentHash;
+        return state;
+    }
+
+    private static IconUpdater.Download request(String url, IconFetchStore.State previous,
+                                                boolean cached) {
+        return IconUpdater.request(IconFetchStore.Source.FALLBACK, url, previous, cached, null);
+    }
+
+    @Test
+    public void okIsFound() {
+        final String url = serve("/ok", exchange -> {
+            exchange.getResponseHeaders().add("ETag", "\"v1\"");
+            respond(exchange, 200, IMAGE);
+        });
+        final IconUpdater.Download download = request(url, null, false);
+        assertEquals(IconFetchStore.Result.FOUND, download.result);
+        assertArrayEquals(IMAGE, download.bytes);
+        assertEquals("\"v1\"", download.etag);
+    }
+
+    @Test
+    public void notModifiedIsUnchanged() {
+        final AtomicInteger requests = new AtomicInteger();
+        final String url = serve("/cached", exchange -> {
+            requests.incrementAndGet();
+            exchange.getResponseHeaders().add("ETag", "\"v1\"");
+            if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match")))
+                respond(exchange, 304, null);
+            else respond(exchange, 200, IMAGE);
+        });
+        final IconUpdater.Download first = request(url, null, false);
+        assertEquals(IconFetchStore.Result.FOUND, first.result);
+
+        final IconUpdater.Download second = request(url, previousOf(first), true);
+        assertEquals(IconFetchStore.Result.UNCHANGED, second.result);
+        assertNull(second.bytes);
+        assertEquals(first.contentHash, second.contentHash);
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void uncachedImageIsNotConditional() {
+        final String url = serve("/evicted", exchange -> {
+            exchange.getResponseHeaders().add("ETag", "\"v1\"");
+            if (exchange.getRequestHeaders().containsKey("If-None-Match"))
+                respond(exchange, 304, null);
+            else respond(exchange, 200, IMAGE);
+        });
+        final IconUpdater.Download first = request(url, null, false);
+        final IconUpdater.Download second = request(url, previousOf(first), false);
+        assertEquals(IconFetchStore.Result.FOUND, second.result);
+        assertArrayEquals(IMAGE, second.bytes);
+    }
+
+    @Test
+    public void sameContentIsUnchanged() {
+        // This server doesn't support validators, but sends the same image
+        final String url = serve("/same", exchange -> respond(exchange, 200, IMAGE));
+        final IconUpdater.Download first = request(url, null, false);
+        final IconUpdater.Download second = request(url, previousOf(first), true);
+        assertEquals(IconFetchStore.Result.UNCHANGED, second.result);
+        assertEquals(first.contentHash, second.contentHash);
+    }
+
+    @Test
+    public void changedContentIsFound() {
+        final AtomicInteger requests = new AtomicInteger();
+        final String url = serve("/changed", exchange -> respond(exchange, 200,
+                (requests.incrementAndGet() + " version").getBytes(StandardCharsets.UTF_8)));
+        final IconUpdater.Download first = request(url, null, false);
+        final IconUpdater.Download second = request(url, previousOf(first), true);
+        assertEquals(IconFetchStore.Result.FOUND, second.result);
+        assertFalse(first.contentHash == second.contentHash);
+    }
+
+    @Test
+    public void clientErrorIsMissing() {
+        final String url = serve("/missing", exchange -> respond(exchange, 404,
+                "not found".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(IconFetchStore.Result.MISSING, request(url, null, false).result);
+    }
+
+    @Test
+    public void serverErrorIsError() {
+        final String url = serve("/error", exchange -> respond(exchange, 503, null));
+        assertEquals(IconFetchStore.Result.ERROR, request(url, null, false).result);
+    }
+
+    @Test
+    public void timeoutIsError() {
+        IconUpdater.setTimeouts(1000, 200);
+        final String url = serve("/slow", exchange -> {
+            sleep(1000);
+            respond(exchange, 200, IMAGE);
+        });
+        final long startMs = System.currentTimeMillis();
+        assertEquals(IconFetchStore.Result.ERROR, request(url, null, false).result);
+        assertTrue(System.currentTimeMillis() - startMs < 1000);
+    }
+
+    /** A source which returns a result after a delay */
+    private static IconUpdater.SourceRequest source(IconFetchStore.Source source,
+                                                   IconFetchStore.Result result, long delayMs) {
+        return new IconUpdater.SourceRequest(source, r -> {
+            sleep(delayMs);
+            return new IconUpdater.Download(r.source, source.name(), result);
+        });
+    }
+
+    /** Runs a check to completion, and returns the sources whose results were used, in order */
+    private static List<IconFetchStore.Source> runCheck(IconUpdater.SourceRequest... requests)
+            throws InterruptedException {
+        final List<IconFetchStore.Source> handled = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicInteger finishCount = new AtomicInteger();
+        new IconUpdater.Check(Arrays.asList(requests), download -> {
+            handled.add(download.source);
+            return download.result;
+        }, () -> {
+            finishCount.incrementAndGet();
+            finished.countDown();
+        }).start();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        // Give any late requests a chance to (incorrectly) finish the check again
+        Thread.sleep(300);
+        assertEquals(1, finishCount.get());
+        return handled;
+    }
+
+    @Test
+    public void fallbackWaitsForPriority() throws InterruptedException {
+        final List<IconFetchStore.Source> handled = runCheck(
+                source(IconFetchStore.Source.PRIORITY, IconFetchStore.Result.MISSING, 200),
+                source(IconFetchStore.Source.METADATA, IconFetchStore.Result.ERROR, 100),
+                source(IconFetchStore.Source.FALLBACK, IconFetchStore.Result.FOUND, 0));
+        assertEquals(Arrays.asList(IconFetchStore.Source.PRIORITY,
+                IconFetchStore.Source.METADATA, IconFetchStore.Source.FALLBACK), handled);
+    }
+
+    @Test
+    public void priorityWinsWithoutWaitingForFallback() throws InterruptedException {
+        final IconUpdater.SourceRequest fallback =
+                source(IconFetchStore.Source.FALLBACK, IconFetchStore.Result.FOUND, 2000);
+        final long startMs = System.currentTimeMillis();
+        final List<IconFetchStore.Source> handled = runCheck(
+                source(IconFetchStore.Source.PRIORITY, IconFetchStore.Result.FOUND, 0), fallback);
+        assertEquals(Collections.singletonList(IconFetchStore.Source.PRIORITY), handled);
+        assertTrue(fallback.isCancelled());
+        assertTrue(System.currentTimeMillis() - startMs < 2000);
+    }
+
+    @Test
+    public void unchangedStopsCheck() throws InterruptedException {
+        final List<IconFetchStore.Source> handled = runCheck(
+                source(IconFetchStore.Source.PRIORITY, IconFetchStore.Result.MISSING, 0),
+                source(IconFetchStore.Source.METADATA, IconFetchStore.Result.UNCHANGED, 50),
+                source(IconFetchStore.Source.FALLBACK, IconFetchStore.Result.FOUND, 0));
+        assertEquals(Arrays.asList(IconFetchStore.Source.PRIORITY,
+                IconFetchStore.Source.METADATA), handled);
+    }
+
+    @Test
+    public void everySourceUsedWhenNoneFound() throws InterruptedException {
+        final List<IconFetchStore.Source> handled = runCheck(
+                source(IconFetchStore.Source.PRIORITY, IconFetchStore.Result.MISSING, 100),
+                source(IconFetchStore.Source.METADATA, IconFetchStore.Result.MISSING, 0),
+                source(IconFetchStore.Source.FALLBACK, IconFetchStore.Result.ERROR, 50));
+        assertEquals(Arrays.asList(IconFetchStore.Source.PRIORITY,
+                IconFetchStore.Source.METADATA, IconFetchStore.Source.FALLBACK), handled);
+    }
+
+    @Test
+    public void losingRequestIsDisconnected() throws InterruptedException {
+        final CountDownLatch served = new CountDownLatch(1);
+        final String url = serve("/stalled", exchange -> {
+            served.countDown();
+            sleep(5000);
+            respond(exchange, 200, IMAGE);
+        });
+        final CountDownLatch returned = new CountDownLatch(1);
+        final IconUpdater.SourceRequest fallback = new IconUpdater.SourceRequest(
+                IconFetchStore.Source.FALLBACK, r -> {
+            final IconUpdater.Download download
+                    = IconUpdater.request(r.source, url, null, false, r);
+            returned.countDown();
+            return download;
+        });
+        // The priority source only wins once the fallback is mid-request
+        final IconUpdater.SourceRequest priority = new IconUpdater.SourceRequest(
+                IconFetchStore.Source.PRIORITY, r -> {
+            try {
+                served.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {}
+            return new IconUpdater.Download(r.source, null, IconFetchStore.Result.FOUND);
+        });
+        runCheck(priority, fallback);
+        assertTrue(returned.await(2, TimeUnit.SECONDS));
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException ignored) {}
+    }
+}
@@ -0,0 +1,85 @@
+package com.threethan.launchercore.metadata;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.threethan.launchercore.Benchmark;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures parsing app metadata with the streaming reader, compared with a new Gson
+ * reflecting into a map for every response, as MetaMetadata used to.
+ * <p>
+ * The corpus is generated with the same fields and similar lengths to the files in
+ * https://github.com/threethan/MetaMetadata, so the benchmark doesn't need the network.
+ */
+public class MetaMetadataBenchmark {
+    private static final int APP_COUNT = 500;
+    private static final String[] corpus = new String[APP_COUNT];
+    static {
+        final Random random = new Random(0);
+        for (int i = 0; i < APP_COUNT; i++) {
+            final String packageName = "com.example.app" + i;
+            final String image = "https://scontent.oculuscdn.com/v/t64.5771-25/" + i + "_n.jpg";
+            corpus[i] = "{"
+                    + "\"id\":\"" + (1000000000000000L + random.nextInt(Integer.MAX_VALUE)) + "\","
+                    + "\"packageName\":\"" + packageName + "\","
+                    + "\"name\":\"Example App " + i + "\","
+                    + "\"description\":\"" + "An example app with a long description. "
+                    .repeat(5 + random.nextInt(20)) + "\","
+                    + "\"publisher\":\"Example Studios\","
+                    + "\"genres\":\"Action, Adventure, Simulation\","
+                    + "\"releaseDate\":\"2023-0" + (1 + random.nextInt(9)) + "-15\","
+                    + "\"rating\":\"4." + random.nextInt(10) + "\","
+                    + "\"icon\":\"" + image + "?icon\","
+                    + "\"landscape\":\"" + image + "?landscape\","
+                    + "\"portrait\":\"" + image + "?portrait\","
+                    + "\"hero\":\"" + image + "?hero\","
+                    + "\"logo\":\"" + image + "?logo\""
+                    + "}";
+        }
+    }
+
+    private static Map<String, String> readFields(String json) throws IOException {
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            return MetaMetadata.readFields(reader);
+        }
+    }
+
+    /** How metadata used to be parsed, with a new Gson for every response */
+    private static Map<String, String> readWithGson(String json) {
+        final Type type = new TypeToken<Map<String, String>>(){}.getType();
+        return new Gson().fromJson(new StringReader(json), type);
+    }
+
+    @Test
+    public void fieldsMatchGson() throws IOException {
+        for (String json : corpus) {
+            final Map<String, String> all = readWithGson(json);
+            final Map<String, String> expected = new HashMap<>();
+            for (String key : new String[]{"name", "icon", "landscape"})
+                expected.put(key, all.get(key));
+            assertEquals(expected, readFields(json));
+        }
+    }
+
+    @Test
+    public void parseApps() throws Exception {
+        Benchmark.assumeEnabled();
+        final double gson = Benchmark.measure("Parse an app's metadata with a new Gson",
+                APP_COUNT * 4, iteration -> readWithGson(corpus[iteration % APP_COUNT]));
+        final double streaming = Benchmark.measure("Parse an app's metadata by streaming",
+                APP_COUNT * 4, iteration -> readFields(corpus[iteration % APP_COUNT]));
+        Benchmark.compare("Per-app parsing speedup", gson, streaming);
+    }
+}